@@ -0,0 +1,29 @@
+
+import org.apache.ibatis.annotations.Insert;
+import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
+
+/**
+ * Multi-row inserts for bulk article ingestion, IDs are assigned by the caller
+ */
+@Mapper
+public interface ApArticleBulkMapper {
+
+    @Insert("<script>insert into ap_article (id, title, author_id, author_name, channel_id, channel_name, layout, flag, images, " +
+            "labels, likes, collection, comment, views, created_time, publish_time, static_url) values " +
+            "<foreach collection='list' item='a' separator=','>(#{a.id}, #{a.title}, #{a.authorId}, #{a.authorName}, " +
+            "#{a.channelId}, #{a.channelName}, #{a.layout}, #{a.flag}, #{a.images}, #{a.labels}, #{a.likes}, " +
+            "#{a.collection}, #{a.comment}, #{a.views}, #{a.createdTime}, #{a.publishTime}, #{a.staticUrl})</foreach></script>")
+    int insertArticles(@Param("list") List<ApArticle> list);
+
+    @Insert("<script>insert into ap_article_config (id, article_id, is_comment, is_forward, is_down, is_delete) values " +
+            "<foreach collection='list' item='c' separator=','>(#{c.id}, #{c.articleId}, #{c.isComment}, #{c.isForward}, " +
+            "#{c.isDown}, #{c.isDelete})</foreach></script>")
+    int insertConfigs(@Param("list") List<ApArticleConfig> list);
+
+    @Insert("<script>insert into ap_article_content (id, article_id, content) values " +
+            "<foreach collection='list' item='c' separator=','>(#{c.id}, #{c.articleId}, #{c.content,typeHandler=com.heima.article.mybatis.ArticleContentTypeHandler})</foreach></script>")
+    int insertContents(@Param("list") List<ApArticleContent> list);
+}
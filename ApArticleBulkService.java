@@ -0,0 +1,20 @@
+
+import java.util.Iterator;
+import java.util.List;
+
+public interface ApArticleBulkService {
+
+    /**
+     * Save articles in bulk
+     * @param dtos
+     * @return
+     */
+    public ResponseResult saveArticleBatch(List<ArticleDto> dtos);
+
+    /**
+     * Ingest a stream of articles chunk by chunk
+     * @param articles
+     * @return the number of articles saved
+     */
+    public int ingest(Iterator<ArticleDto> articles);
+}
@@ -0,0 +1,162 @@
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.BeanUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+@Service
+@Slf4j
+public class ApArticleBulkServiceImpl implements ApArticleBulkService {
+
+    /**
+     * Articles per chunk, one transaction and one multi-row insert per table
+     */
+    private final static int CHUNK_SIZE = 500;
+
+    /**
+     * Content bytes per insert statement, keeps the statement under max_allowed_packet
+     */
+    private final static int CONTENT_STATEMENT_BYTES = 4 * 1024 * 1024;
+
+    @Autowired
+    private ApArticleBulkMapper apArticleBulkMapper;
+
+    @Autowired
+    private ArticleFreemarkerService articleFreemarkerService;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    @Autowired
+    private SnowflakeIdGenerator snowflakeIdGenerator;
+
+    /**
+     * Save articles in bulk
+     * @param dtos
+     * @return number of articles, time spent and rows per second
+     */
+    @Override
+    public ResponseResult saveArticleBatch(List<ArticleDto> dtos) {
+        //1. Check parameters
+        if(dtos == null || dtos.isEmpty()){
+            return ResponseResult.errorResult(AppHttpCodeEnum.PARAM_INVALID);
+        }
+        for (ArticleDto dto : dtos) {
+            if(dto == null || dto.getId() != null){
+                return ResponseResult.errorResult(AppHttpCodeEnum.PARAM_INVALID,"Bulk ingestion only accepts new articles");
+            }
+        }
+
+        //2. Ingest
+        long start = System.currentTimeMillis();
+        int count = ingest(dtos.iterator());
+        long cost = Math.max(System.currentTimeMillis() - start, 1);
+
+        //3. Return results
+        Map<String,Object> map = new HashMap<>();
+        map.put("articles", count);
+        map.put("costMillis", cost);
+        map.put("rowsPerSecond", count * 3 * 1000L / cost);
+        return ResponseResult.okResult(map);
+    }
+
+    /**
+     * Ingest a stream of articles chunk by chunk
+     * @param articles
+     * @return the number of articles saved
+     */
+    @Override
+    public int ingest(Iterator<ArticleDto> articles) {
+        int total = 0;
+        long start = System.currentTimeMillis();
+        List<ArticleDto> chunk = new ArrayList<>(CHUNK_SIZE);
+        while (articles.hasNext()) {
+            chunk.add(articles.next());
+            if (chunk.size() == CHUNK_SIZE || !articles.hasNext()) {
+                total += saveChunk(chunk);
+                chunk = new ArrayList<>(CHUNK_SIZE);
+                long cost = Math.max(System.currentTimeMillis() - start, 1);
+                log.info("Bulk ingestion, articles={}, rows/s={}", total, total * 3 * 1000L / cost);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Save one chunk in one transaction, then hand the rendering off as one batch
+     * @param chunk
+     * @return
+     */
+    private int saveChunk(List<ArticleDto> chunk) {
+        List<ApArticle> apArticles = new ArrayList<>(chunk.size());
+        List<ApArticleConfig> apArticleConfigs = new ArrayList<>(chunk.size());
+        List<ApArticleContent> apArticleContents = new ArrayList<>(chunk.size());
+        Map<Long,String> contents = new HashMap<>();
+
+        //1. Build rows with pre-allocated IDs
+        Date now = new Date();
+        for (ArticleDto dto : chunk) {
+            ApArticle apArticle = new ApArticle();
+            BeanUtils.copyProperties(dto, apArticle);
+            apArticle.setId(snowflakeIdGenerator.nextId());
+            if(apArticle.getCreatedTime() == null){
+                apArticle.setCreatedTime(now);
+            }
+            apArticles.add(apArticle);
+
+            ApArticleConfig apArticleConfig = new ApArticleConfig(apArticle.getId());
+            apArticleConfig.setId(snowflakeIdGenerator.nextId());
+            apArticleConfigs.add(apArticleConfig);
+
+            ApArticleContent apArticleContent = new ApArticleContent();
+            apArticleContent.setId(snowflakeIdGenerator.nextId());
+            apArticleContent.setArticleId(apArticle.getId());
+            apArticleContent.setContent(dto.getContent());
+            apArticleContents.add(apArticleContent);
+            contents.put(apArticle.getId(), dto.getContent());
+        }
+
+        //2. Multi-row inserts
+        transactionTemplate.execute(status -> {
+            apArticleBulkMapper.insertArticles(apArticles);
+            apArticleBulkMapper.insertConfigs(apArticleConfigs);
+            insertContents(apArticleContents);
+            return null;
+        });
+
+        //3. Asynchronous call, render the whole chunk
+        articleFreemarkerService.buildArticlesToMinIO(apArticles, contents);
+
+        return apArticles.size();
+    }
+
+    /**
+     * Content rows are large, split the insert by size
+     * @param apArticleContents
+     */
+    private void insertContents(List<ApArticleContent> apArticleContents) {
+        List<ApArticleContent> statement = new ArrayList<>();
+        long bytes = 0;
+        for (ApArticleContent apArticleContent : apArticleContents) {
+            int length = apArticleContent.getContent() == null ? 0 : apArticleContent.getContent().length() * 3;
+            if(!statement.isEmpty() && bytes + length > CONTENT_STATEMENT_BYTES){
+                apArticleBulkMapper.insertContents(statement);
+                statement = new ArrayList<>();
+                bytes = 0;
+            }
+            statement.add(apArticleContent);
+            bytes += length;
+        }
+        if(!statement.isEmpty()){
+            apArticleBulkMapper.insertContents(statement);
+        }
+    }
+}
@@ -3,18 +3,40 @@ package com.heima.article.service.impl;
 import com.baomidou.mybatisplus.core.toolkit.Wrappers;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.heima.article.mapper.ApArticleConfigMapper;
+import com.heima.article.mapper.ApArticleFeedMapper;
+import com.heima.article.mapper.ApArticleMapper;
 import com.heima.article.service.ApArticleConfigService;
+import com.heima.article.service.HotArticleService;
+import com.heima.model.article.pojos.ApArticle;
 import com.heima.model.article.pojos.ApArticleConfig;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 @Service
 @Slf4j
 @Transactional
 public class ApArticleConfigServiceImpl extends ServiceImpl<ApArticleConfigMapper, ApArticleConfig> implements ApArticleConfigService {
+
+    @Autowired
+    private ApArticleMapper apArticleMapper;
+
+    @Autowired
+    private ArticleFeedCache articleFeedCache;
+
+    @Autowired
+    private ApArticleFeedMapper apArticleFeedMapper;
+
+    @Autowired
+    private HotArticleService hotArticleService;
+
     /**
      * Revise the article
      * @param map
@@ -31,5 +53,66 @@ public class ApArticleConfigServiceImpl extends ServiceImpl<ApArticleConfigMappe
         update(Wrappers.<ApArticleConfig>lambdaUpdate().eq(ApArticleConfig::getArticleId,map.get("articleId"))
                 .set(ApArticleConfig::getIsDown,isDown));
 
+        //Keep the feed projection and the feed cache in step, a deleted article stays hidden when it is put on
+        Long articleId = Long.valueOf(map.get("articleId").toString());
+        apArticleFeedMapper.syncVisibility(articleId);
+        if(isDown){
+            articleFeedCache.remove(articleId);
+            hotArticleService.removeHotArticles(Collections.singletonList(articleId));
+        }else {
+            ApArticle apArticle = apArticleMapper.selectById(articleId);
+            if(apArticle != null){
+                articleFeedCache.put(apArticle);
+            }
+        }
+    }
+
+    /**
+     * Revise articles in batch
+     * Only the last state of each article is kept, then one update puts articles down and one puts them on
+     * @param maps messages in the order they were received
+     * @return the number of articles updated
+     */
+    @Override
+    public int updateByMaps(List<Map> maps) {
+        //1. Keep the last state of each article
+        Map<Long,Boolean> lastState = new LinkedHashMap<>();
+        for (Map map : maps) {
+            //0 Take down  1 Put on
+            Object enable = map.get("enable");
+            Long articleId = Long.valueOf(map.get("articleId").toString());
+            lastState.put(articleId, !enable.equals(1));
+        }
+
+        List<Long> downIds = new ArrayList<>();
+        List<Long> upIds = new ArrayList<>();
+        for (Map.Entry<Long, Boolean> entry : lastState.entrySet()) {
+            if(entry.getValue()){
+                downIds.add(entry.getKey());
+            }else {
+                upIds.add(entry.getKey());
+            }
+        }
+
+        //2. Grouped updates
+        if(!downIds.isEmpty()){
+            update(Wrappers.<ApArticleConfig>lambdaUpdate().in(ApArticleConfig::getArticleId, downIds)
+                    .set(ApArticleConfig::getIsDown, true));
+            apArticleFeedMapper.syncVisibilityBatch(downIds);
+            for (Long articleId : downIds) {
+                articleFeedCache.remove(articleId);
+            }
+            hotArticleService.removeHotArticles(downIds);
+        }
+        if(!upIds.isEmpty()){
+            update(Wrappers.<ApArticleConfig>lambdaUpdate().in(ApArticleConfig::getArticleId, upIds)
+                    .set(ApArticleConfig::getIsDown, false));
+            apArticleFeedMapper.syncVisibilityBatch(upIds);
+            for (ApArticle apArticle : apArticleMapper.selectBatchIds(upIds)) {
+                articleFeedCache.put(apArticle);
+            }
+        }
+
+        return lastState.size();
     }
 }
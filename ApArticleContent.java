@@ -0,0 +1,33 @@
+
+import com.baomidou.mybatisplus.annotation.IdType;
+import com.baomidou.mybatisplus.annotation.TableField;
+import com.baomidou.mybatisplus.annotation.TableId;
+import com.baomidou.mybatisplus.annotation.TableName;
+import com.heima.article.mybatis.ArticleContentTypeHandler;
+import lombok.Data;
+
+import java.io.Serializable;
+
+/**
+ * Article content
+ * autoResultMap makes the content type handler apply to reads as well, without it only writes are encoded
+ */
+@Data
+@TableName(value = "ap_article_content", autoResultMap = true)
+public class ApArticleContent implements Serializable {
+
+    @TableId(value = "id", type = IdType.ID_WORKER)
+    private Long id;
+
+    /**
+     * Article ID
+     */
+    @TableField("article_id")
+    private Long articleId;
+
+    /**
+     * Article content, stored compressed by ArticleContentCodec
+     */
+    @TableField(typeHandler = ArticleContentTypeHandler.class)
+    private String content;
+}
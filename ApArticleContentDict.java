@@ -0,0 +1,29 @@
+
+import com.baomidou.mybatisplus.annotation.IdType;
+import com.baomidou.mybatisplus.annotation.TableField;
+import com.baomidou.mybatisplus.annotation.TableId;
+import com.baomidou.mybatisplus.annotation.TableName;
+import lombok.Data;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * Trained zstd dictionary for ap_article_content
+ * Rows are never deleted, content compressed with a dictionary needs it to be read back
+ */
+@Data
+@TableName("ap_article_content_dict")
+public class ApArticleContentDict implements Serializable {
+
+    /**
+     * Dictionary ID written into the zstd dictionary itself
+     */
+    @TableId(value = "dict_id", type = IdType.INPUT)
+    private Long dictId;
+
+    private byte[] dictionary;
+
+    @TableField("created_time")
+    private Date createdTime;
+}
@@ -0,0 +1,29 @@
+
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.Select;
+
+import java.util.List;
+
+@Mapper
+public interface ApArticleContentDictMapper extends BaseMapper<ApArticleContentDict> {
+
+    /**
+     * IDs of rows not yet stored with the given codec, by keyset
+     * @param lastId
+     * @param codec version byte of the codec
+     * @param limit
+     * @return
+     */
+    @Select("select id from ap_article_content where id > #{lastId} and ascii(content) <> #{codec} order by id limit #{limit}")
+    List<Long> selectContentIdsNotIn(@Param("lastId") long lastId, @Param("codec") int codec, @Param("limit") int limit);
+
+    /**
+     * Sample content rows for dictionary training
+     * @param limit
+     * @return
+     */
+    @Select("select id from ap_article_content order by id desc limit #{limit}")
+    List<Long> selectLatestContentIds(@Param("limit") int limit);
+}
@@ -0,0 +1,64 @@
+
+import com.baomidou.mybatisplus.annotation.IdType;
+import com.baomidou.mybatisplus.annotation.TableField;
+import com.baomidou.mybatisplus.annotation.TableId;
+import com.baomidou.mybatisplus.annotation.TableName;
+import lombok.Data;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * Denormalized feed row: the summary columns of ap_article plus the visibility from ap_article_config
+ * Indexed by (channel_id, is_down, publish_time, id) so a feed page is one index range scan
+ */
+@Data
+@TableName("ap_article_feed")
+public class ApArticleFeed implements Serializable {
+
+    /**
+     * Article ID
+     */
+    @TableId(value = "id", type = IdType.INPUT)
+    private Long id;
+
+    @TableField("channel_id")
+    private Integer channelId;
+
+    /**
+     * Down or deleted, copied from ap_article_config
+     */
+    @TableField("is_down")
+    private Boolean isDown;
+
+    @TableField("publish_time")
+    private Date publishTime;
+
+    private String title;
+
+    @TableField("author_id")
+    private Long authorId;
+
+    @TableField("author_name")
+    private String authorName;
+
+    @TableField("channel_name")
+    private String channelName;
+
+    private Short layout;
+
+    private Byte flag;
+
+    private String images;
+
+    private Integer likes;
+
+    private Integer collection;
+
+    private Integer comment;
+
+    private Integer views;
+
+    @TableField("static_url")
+    private String staticUrl;
+}
@@ -0,0 +1,68 @@
+
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Insert;
+import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.Select;
+import org.apache.ibatis.annotations.Update;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+@Mapper
+public interface ApArticleFeedMapper extends BaseMapper<ApArticleFeed> {
+
+    /**
+     * One feed page after the cursor, newest first
+     * @param channelId null for all channels
+     * @param cursorTime null for the first page
+     * @param cursorId
+     * @param size
+     * @return
+     */
+    @Select("<script>select id, channel_id, publish_time, title, author_id, author_name, channel_name, layout, flag, images, " +
+            "likes, collection, comment, views, static_url from ap_article_feed where is_down = 0 " +
+            "<if test='channelId != null'>and channel_id = #{channelId} </if>" +
+            "<if test='cursorTime != null'>and (publish_time &lt; #{cursorTime} or (publish_time = #{cursorTime} and id &lt; #{cursorId})) </if>" +
+            "order by publish_time desc, id desc limit #{size}</script>")
+    List<ApArticleFeed> selectPage(@Param("channelId") Integer channelId, @Param("cursorTime") Date cursorTime,
+                                   @Param("cursorId") Long cursorId, @Param("size") int size);
+
+    /**
+     * Insert or refresh the summary columns, the visibility is copied from ap_article_config
+     * Null counters keep the stored values
+     * @param feed
+     * @return
+     */
+    @Insert("insert into ap_article_feed (id, channel_id, is_down, publish_time, title, author_id, author_name, channel_name, " +
+            "layout, flag, images, likes, collection, comment, views, static_url) values (#{id}, #{channelId}, " +
+            "coalesce((select c.is_down or c.is_delete from ap_article_config c where c.article_id = #{id}), 0), #{publishTime}, " +
+            "#{title}, #{authorId}, #{authorName}, #{channelName}, #{layout}, #{flag}, #{images}, #{likes}, #{collection}, " +
+            "#{comment}, #{views}, #{staticUrl}) on duplicate key update channel_id = values(channel_id), is_down = values(is_down), " +
+            "publish_time = values(publish_time), title = values(title), author_id = values(author_id), " +
+            "author_name = values(author_name), channel_name = values(channel_name), layout = values(layout), " +
+            "flag = values(flag), images = values(images), likes = coalesce(values(likes), likes), " +
+            "collection = coalesce(values(collection), collection), comment = coalesce(values(comment), comment), " +
+            "views = coalesce(values(views), views), static_url = values(static_url)")
+    int upsert(ApArticleFeed feed);
+
+    /**
+     * Copy the visibility of an article from ap_article_config, down or deleted hides it
+     * @param id
+     * @return
+     */
+    @Update("update ap_article_feed f join ap_article_config c on c.article_id = f.id " +
+            "set f.is_down = (c.is_down or c.is_delete) where f.id = #{id}")
+    int syncVisibility(@Param("id") Long id);
+
+    /**
+     * Copy the visibility of several articles from ap_article_config, down or deleted hides them
+     * @param ids
+     * @return
+     */
+    @Update("<script>update ap_article_feed f join ap_article_config c on c.article_id = f.id " +
+            "set f.is_down = (c.is_down or c.is_delete) where f.id in " +
+            "<foreach collection='ids' item='id' open='(' separator=',' close=')'>#{id}</foreach></script>")
+    int syncVisibilityBatch(@Param("ids") Collection<Long> ids);
+}
@@ -1,14 +1,24 @@
 import com.baomidou.mybatisplus.core.toolkit.Wrappers;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.alibaba.fastjson.JSON;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 @Service
 @Transactional
@@ -18,6 +28,9 @@ public class ApArticleServiceImpl extends ServiceImpl<ApArticleMapper, ApArticle
     @Autowired
     private ApArticleMapper apArticleMapper;
 
+    @Autowired
+    private ArticleFeedCache articleFeedCache;
+
     private final static  short MAX_PAGE_SIZE = 50;
 
     /**
@@ -27,6 +40,7 @@ public class ApArticleServiceImpl extends ServiceImpl<ApArticleMapper, ApArticle
      * @return
      */
     @Override
+    @Transactional(readOnly = true)
     public ResponseResult load(ArticleHomeDto dto, Short type) {
         //1. Validate parameters
         //Validation of pagination count
@@ -52,12 +66,116 @@ public class ApArticleServiceImpl extends ServiceImpl<ApArticleMapper, ApArticle
         if(dto.getMaxBehotTime() == null)dto.setMaxBehotTime(new Date());
         if(dto.getMinBehotTime() == null)dto.setMinBehotTime(new Date());
 
-        //2. Query
-        List<ApArticle> articleList = apArticleMapper.loadArticleList(dto, type);
+        dto.setSize(size);
+
+        //2. Query, served from the feed cache, the database is only queried on a miss
+        List<ApArticle> articleList = articleFeedCache.load(dto, type, size);
+        if(articleList == null){
+            articleList = apArticleMapper.loadArticleList(dto, type);
+        }
         //3. Return results
         return ResponseResult.okResult(articleList);
     }
 
+    @Autowired
+    private ApArticleFeedMapper apArticleFeedMapper;
+
+    /**
+     * Load article list by cursor
+     * Reads only the ap_article_feed projection, no join with ap_article_config and no filesort
+     * @param dto
+     * @return list and the cursor of the next page
+     */
+    @Override
+    @Transactional(readOnly = true)
+    public ResponseResult loadByCursor(ArticleFeedCursorDto dto) {
+        //1. Validate parameters
+        if(dto == null){
+            return ResponseResult.errorResult(AppHttpCodeEnum.PARAM_INVALID);
+        }
+        Integer size = dto.getSize();
+        if(size == null || size == 0){
+            size = 10;
+        }
+        size = Math.min(size,MAX_PAGE_SIZE);
+
+        Integer channelId = null;
+        if(StringUtils.isNotBlank(dto.getTag()) && !dto.getTag().equals(ArticleConstants.DEFAULT_TAG)){
+            if(!StringUtils.isNumeric(dto.getTag()) || dto.getTag().length() > 9){
+                return ResponseResult.errorResult(AppHttpCodeEnum.PARAM_INVALID,"Invalid tag");
+            }
+            channelId = Integer.valueOf(dto.getTag());
+        }
+
+        //Cursor  publishTime_id
+        Date cursorTime = null;
+        Long cursorId = null;
+        if(StringUtils.isNotBlank(dto.getCursor())){
+            String[] parts = dto.getCursor().split("_");
+            if(parts.length != 2 || !StringUtils.isNumeric(parts[0]) || !StringUtils.isNumeric(parts[1])){
+                return ResponseResult.errorResult(AppHttpCodeEnum.PARAM_INVALID,"Invalid cursor");
+            }
+            try {
+                cursorTime = new Date(Long.parseLong(parts[0]));
+                cursorId = Long.valueOf(parts[1]);
+            } catch (NumberFormatException e) {
+                //Digits beyond the range of a long
+                return ResponseResult.errorResult(AppHttpCodeEnum.PARAM_INVALID,"Invalid cursor");
+            }
+        }
+
+        //2. Query
+        List<ApArticleFeed> list = apArticleFeedMapper.selectPage(channelId, cursorTime, cursorId, size);
+
+        //3. Return results
+        Map<String,Object> map = new HashMap<>();
+        map.put("list", list);
+        if(list.size() == size){
+            ApArticleFeed last = list.get(list.size() - 1);
+            map.put("cursor", last.getPublishTime().getTime() + "_" + last.getId());
+        }
+        return ResponseResult.okResult(map);
+    }
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * Load the hot article list, precomputed by computeHotArticleJob
+     * @param dto
+     * @return
+     */
+    @Override
+    @Transactional(readOnly = true)
+    public ResponseResult loadHot(ArticleHomeDto dto) {
+        if(StringUtils.isBlank(dto.getTag())){
+            dto.setTag(ArticleConstants.DEFAULT_TAG);
+        }
+
+        Integer size = dto.getSize();
+        if(size == null || size == 0){
+            size = 10;
+        }
+        size = Math.min(size,MAX_PAGE_SIZE);
+
+        //Highest scores first, then their summaries
+        Set<String> ids = stringRedisTemplate.opsForZSet().reverseRange(HotArticleServiceImpl.HOT_ARTICLE_FIRST_PAGE + dto.getTag(), 0, size - 1);
+        if(ids != null && !ids.isEmpty()){
+            List<Object> summaries = stringRedisTemplate.opsForHash().multiGet(
+                    HotArticleServiceImpl.HOT_ARTICLE_SUMMARY + dto.getTag(), new ArrayList<>(ids));
+            List<HotArticleVo> hotArticleVoList = new ArrayList<>(summaries.size());
+            for (Object summary : summaries) {
+                if(summary != null){
+                    hotArticleVoList.add(JSON.parseObject(summary.toString(), HotArticleVo.class));
+                }
+            }
+            return ResponseResult.okResult(hotArticleVoList);
+        }
+
+        //Not computed yet or no recent articles, fall back to the chronological feed
+        return load(dto, ArticleConstants.LOADTYPE_LOAD_MORE);
+    }
+
     @Autowired
     private ApArticleConfigMapper apArticleConfigMapper;
 
@@ -67,6 +185,9 @@ public class ApArticleServiceImpl extends ServiceImpl<ApArticleMapper, ApArticle
     @Autowired
     private ArticleFreemarkerService articleFreemarkerService;
 
+    @Autowired
+    private SnowflakeIdGenerator snowflakeIdGenerator;
+
     /**
      * Save related articles on the app
      * @param dto
@@ -92,15 +213,18 @@ public class ApArticleServiceImpl extends ServiceImpl<ApArticleMapper, ApArticle
         if(dto.getId() == null){
             //2.1 ID does not exist  Save  Article  Article configuration  Article content
 
-            //Save article
+            //Save article, IDs are generated on this node
+            apArticle.setId(snowflakeIdGenerator.nextId());
             save(apArticle);
 
             //Save configuration
             ApArticleConfig apArticleConfig = new ApArticleConfig(apArticle.getId());
+            apArticleConfig.setId(snowflakeIdGenerator.nextId());
             apArticleConfigMapper.insert(apArticleConfig);
 
             //Save article content
             ApArticleContent apArticleContent = new ApArticleContent();
+            apArticleContent.setId(snowflakeIdGenerator.nextId());
             apArticleContent.setArticleId(apArticle.getId());
             apArticleContent.setContent(dto.getContent());
             apArticleContentMapper.insert(apArticleContent);
@@ -118,13 +242,89 @@ public class ApArticleServiceImpl extends ServiceImpl<ApArticleMapper, ApArticle
         }
 
         //Asynchronous call, generate static files and upload to MinIO
-        articleFreemarkerService.buildArticleToMinIO(apArticle,dto.getContent());
+        //Started after commit, the render reads the article config and content this transaction writes
+        String content = dto.getContent();
+        if(TransactionSynchronizationManager.isSynchronizationActive()){
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    articleFreemarkerService.buildArticleToMinIO(apArticle,content);
+                }
+            });
+        }else {
+            articleFreemarkerService.buildArticleToMinIO(apArticle,content);
+        }
 
 
         //3.Return Article ID
         return ResponseResult.okResult(apArticle.getId());
     }
 
+    private final static int MAX_SEARCH_DOCUMENT_PAGE = 1000;
 
+    /**
+     * Search documents of published articles after lastArticleId, for the search index rebuild
+     * @param lastArticleId keyset cursor, 0 for the first page
+     * @param size
+     * @return documents ordered by article ID
+     */
+    @Override
+    @Transactional(readOnly = true)
+    public ResponseResult loadSearchDocuments(Long lastArticleId, Integer size) {
+        //1. Check parameters
+        if(lastArticleId == null || size == null || size <= 0){
+            return ResponseResult.errorResult(AppHttpCodeEnum.PARAM_INVALID);
+        }
+        size = Math.min(size, MAX_SEARCH_DOCUMENT_PAGE);
+
+        //2. Published articles by keyset over the config
+        List<ApArticleConfig> configs = apArticleConfigMapper.selectList(Wrappers.<ApArticleConfig>lambdaQuery()
+                .gt(ApArticleConfig::getArticleId, lastArticleId)
+                .eq(ApArticleConfig::getIsDown, false)
+                .eq(ApArticleConfig::getIsDelete, false)
+                .orderByAsc(ApArticleConfig::getArticleId)
+                .last("limit " + size));
+        if(configs.isEmpty()){
+            return ResponseResult.okResult(new ArrayList<>());
+        }
+        List<Long> ids = configs.stream().map(ApArticleConfig::getArticleId).collect(Collectors.toList());
+        Map<Long,String> contents = new HashMap<>();
+        for (ApArticleContent apArticleContent : apArticleContentMapper.selectList(Wrappers.<ApArticleContent>lambdaQuery()
+                .in(ApArticleContent::getArticleId, ids))) {
+            contents.put(apArticleContent.getArticleId(), apArticleContent.getContent());
+        }
+
+        //3. Same document as the ES sync message, only the text of the content
+        List<SearchArticleVo> documents = new ArrayList<>(ids.size());
+        for (ApArticle apArticle : listByIds(ids)) {
+            SearchArticleVo vo = new SearchArticleVo();
+            BeanUtils.copyProperties(apArticle, vo);
+            vo.setContent(ArticleSearchDocumentUtils.plainText(contents.get(apArticle.getId())));
+            documents.add(vo);
+        }
+        documents.sort(Comparator.comparing(SearchArticleVo::getId));
+        return ResponseResult.okResult(documents);
+    }
+
+    /**
+     * IDs of taken down or deleted articles after lastArticleId, for the search index rebuild
+     * @param lastArticleId keyset cursor, 0 for the first page
+     * @param size
+     * @return article IDs in ascending order
+     */
+    @Override
+    @Transactional(readOnly = true)
+    public ResponseResult loadUnpublishedIds(Long lastArticleId, Integer size) {
+        if(lastArticleId == null || size == null || size <= 0){
+            return ResponseResult.errorResult(AppHttpCodeEnum.PARAM_INVALID);
+        }
+        List<ApArticleConfig> configs = apArticleConfigMapper.selectList(Wrappers.<ApArticleConfig>lambdaQuery()
+                .select(ApArticleConfig::getArticleId)
+                .gt(ApArticleConfig::getArticleId, lastArticleId)
+                .and(w -> w.eq(ApArticleConfig::getIsDown, true).or().eq(ApArticleConfig::getIsDelete, true))
+                .orderByAsc(ApArticleConfig::getArticleId)
+                .last("limit " + Math.min(size, MAX_SEARCH_DOCUMENT_PAGE)));
+        return ResponseResult.okResult(configs.stream().map(ApArticleConfig::getArticleId).collect(Collectors.toList()));
+    }
 
 }
@@ -0,0 +1,183 @@
+package com.heima.article.mybatis;
+
+import com.baomidou.mybatisplus.core.toolkit.Wrappers;
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictDecompress;
+import com.heima.article.mapper.ApArticleContentDictMapper;
+import com.heima.model.article.pojos.ApArticleContentDict;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compression codec of ap_article_content.content
+ * Stored layout: [version byte][original length int][codec header][payload]
+ *   1 LZ4 block
+ *   2 zstd frame, codec header is the dictionary ID (0 = no dictionary)
+ * Rows written before compression start with the JSON text itself and are decoded as plain UTF-8.
+ */
+@Component
+@Slf4j
+public class ArticleContentCodec {
+
+    public final static byte VERSION_LZ4 = 1;
+    public final static byte VERSION_ZSTD = 2;
+
+    /**
+     * Used by ArticleContentTypeHandler, which is created by MyBatis and not by Spring
+     */
+    private static volatile ArticleContentCodec instance;
+
+    @Value("${article.content.codec:lz4}")
+    private String codec;
+
+    @Value("${article.content.zstd-level:6}")
+    private int zstdLevel;
+
+    @Autowired
+    private ApArticleContentDictMapper apArticleContentDictMapper;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final LZ4Compressor lz4Compressor = LZ4Factory.fastestInstance().fastCompressor();
+
+    private final LZ4FastDecompressor lz4Decompressor = LZ4Factory.fastestInstance().fastDecompressor();
+
+    private final Map<Long, ZstdDictDecompress> decompressDicts = new ConcurrentHashMap<>();
+
+    /**
+     * Dictionary used for new zstd rows, replaced as a whole so encoders never pair a dictionary with another one's ID
+     */
+    private volatile CompressDict compressDict;
+
+    private Timer lz4Encode, lz4Decode, zstdEncode, zstdDecode, plainDecode;
+
+    @PostConstruct
+    public void init() {
+        lz4Encode = timer("lz4", "encode");
+        lz4Decode = timer("lz4", "decode");
+        zstdEncode = timer("zstd", "encode");
+        zstdDecode = timer("zstd", "decode");
+        plainDecode = timer("plain", "decode");
+        reloadDictionary();
+        instance = this;
+    }
+
+    public static ArticleContentCodec getInstance() {
+        return instance;
+    }
+
+    /**
+     * Version byte rows are written with
+     * @return
+     */
+    public byte targetVersion() {
+        return "zstd".equalsIgnoreCase(codec) ? VERSION_ZSTD : VERSION_LZ4;
+    }
+
+    /**
+     * Use the newest trained dictionary for new zstd rows
+     * Other nodes pick up a newly trained dictionary on the next schedule
+     */
+    @Scheduled(fixedDelay = 5 * 60 * 1000, initialDelay = 5 * 60 * 1000)
+    public void reloadDictionary() {
+        ApArticleContentDict latest = apArticleContentDictMapper.selectOne(Wrappers.<ApArticleContentDict>lambdaQuery()
+                .orderByDesc(ApArticleContentDict::getCreatedTime).last("limit 1"));
+        CompressDict current = compressDict;
+        if (latest != null && (current == null || latest.getDictId() != current.id)) {
+            compressDict = new CompressDict(latest.getDictId(), new ZstdDictCompress(latest.getDictionary(), zstdLevel));
+            log.info("Article content zstd dictionary loaded, dictId={}", latest.getDictId());
+        }
+    }
+
+    public byte[] encode(String content) {
+        byte[] raw = content.getBytes(StandardCharsets.UTF_8);
+        long start = System.nanoTime();
+        if (targetVersion() == VERSION_ZSTD) {
+            CompressDict dict = compressDict;
+            byte[] payload = dict == null ? Zstd.compress(raw, zstdLevel) : Zstd.compress(raw, dict.dict);
+            byte[] out = ByteBuffer.allocate(1 + 4 + 8 + payload.length)
+                    .put(VERSION_ZSTD).putInt(raw.length).putLong(dict == null ? 0 : dict.id).put(payload).array();
+            zstdEncode.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            return out;
+        }
+        byte[] payload = lz4Compressor.compress(raw);
+        byte[] out = ByteBuffer.allocate(1 + 4 + payload.length).put(VERSION_LZ4).putInt(raw.length).put(payload).array();
+        lz4Encode.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        return out;
+    }
+
+    public String decode(byte[] stored) {
+        if (stored == null) {
+            return null;
+        }
+        long start = System.nanoTime();
+        if (stored.length > 5 && stored[0] == VERSION_LZ4) {
+            int length = ByteBuffer.wrap(stored, 1, 4).getInt();
+            byte[] raw = new byte[length];
+            lz4Decompressor.decompress(stored, 5, raw, 0, length);
+            lz4Decode.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            return new String(raw, StandardCharsets.UTF_8);
+        }
+        if (stored.length > 13 && stored[0] == VERSION_ZSTD) {
+            ByteBuffer header = ByteBuffer.wrap(stored, 1, 12);
+            int length = header.getInt();
+            long dictId = header.getLong();
+            byte[] payload = new byte[stored.length - 13];
+            System.arraycopy(stored, 13, payload, 0, payload.length);
+            byte[] raw = dictId == 0 ? Zstd.decompress(payload, length) : Zstd.decompress(payload, decompressDict(dictId), length);
+            zstdDecode.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            return new String(raw, StandardCharsets.UTF_8);
+        }
+        //Row written before compression
+        String content = new String(stored, StandardCharsets.UTF_8);
+        plainDecode.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        return content;
+    }
+
+    private ZstdDictDecompress decompressDict(long dictId) {
+        return decompressDicts.computeIfAbsent(dictId, id -> {
+            ApArticleContentDict dict = apArticleContentDictMapper.selectById(id);
+            if (dict == null) {
+                throw new IllegalStateException("Article content zstd dictionary not found, dictId=" + id);
+            }
+            return new ZstdDictDecompress(dict.getDictionary());
+        });
+    }
+
+    private Timer timer(String codec, String op) {
+        return Timer.builder("article.content.codec")
+                .tag("codec", codec)
+                .tag("op", op)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+
+    private static class CompressDict {
+
+        private final long id;
+
+        private final ZstdDictCompress dict;
+
+        CompressDict(long id, ZstdDictCompress dict) {
+            this.id = id;
+            this.dict = dict;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+
+import com.baomidou.mybatisplus.core.toolkit.Wrappers;
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDictTrainer;
+import com.heima.article.mybatis.ArticleContentCodec;
+import com.xxl.job.core.context.XxlJobHelper;
+import com.xxl.job.core.handler.annotation.XxlJob;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Background jobs of the article content codec
+ */
+@Component
+@Slf4j
+public class ArticleContentRecompressJob {
+
+    private final static int BATCH_SIZE = 200;
+
+    private final static int SAMPLE_ROWS = 5000;
+
+    private final static int DICT_SIZE = 112 * 1024;
+
+    @Autowired
+    private ApArticleContentDictMapper apArticleContentDictMapper;
+
+    @Autowired
+    private ApArticleContentMapper apArticleContentMapper;
+
+    @Autowired
+    private ArticleContentCodec articleContentCodec;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private TransactionTemplate transactionTemplate;
+
+    @PostConstruct
+    public void initTransactionTemplate() {
+        transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    /**
+     * Rewrite rows that are not stored with the configured codec, including rows written before compression
+     * Job param: pause in milliseconds between batches, default 50
+     */
+    @XxlJob("recompressArticleContentJob")
+    public void recompress() throws InterruptedException {
+        String param = XxlJobHelper.getJobParam();
+        long pause = param == null || param.trim().isEmpty() ? 50 : Long.parseLong(param.trim());
+        byte target = articleContentCodec.targetVersion();
+
+        long lastId = 0;
+        int total = 0;
+        long start = System.currentTimeMillis();
+        while (true) {
+            List<Long> ids = apArticleContentDictMapper.selectContentIdsNotIn(lastId, target, BATCH_SIZE);
+            if (ids.isEmpty()) {
+                break;
+            }
+            //Read back through the codec and write again with the configured one
+            //The rows stay locked from the read to the write, an edit in between waits instead of being overwritten
+            transactionTemplate.execute(status -> {
+                for (ApArticleContent apArticleContent : apArticleContentMapper.selectList(Wrappers.<ApArticleContent>lambdaQuery()
+                        .in(ApArticleContent::getId, ids).last("for update"))) {
+                    apArticleContentMapper.updateById(apArticleContent);
+                }
+                return null;
+            });
+            total += ids.size();
+            lastId = ids.get(ids.size() - 1);
+            XxlJobHelper.log("Recompressed rows={}, lastId={}", total, lastId);
+            Thread.sleep(pause);
+        }
+        log.info("Article content recompressed, rows={}, cost={}ms", total, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Train a zstd dictionary from the latest articles and make it the one used for new rows
+     */
+    @XxlJob("trainArticleContentDictJob")
+    public void trainDictionary() {
+        List<Long> ids = apArticleContentDictMapper.selectLatestContentIds(SAMPLE_ROWS);
+        ZstdDictTrainer trainer = new ZstdDictTrainer(64 * 1024 * 1024, DICT_SIZE);
+        for (int i = 0; i < ids.size(); i += BATCH_SIZE) {
+            for (ApArticleContent apArticleContent : apArticleContentMapper.selectBatchIds(ids.subList(i, Math.min(i + BATCH_SIZE, ids.size())))) {
+                if (apArticleContent.getContent() != null) {
+                    trainer.addSample(apArticleContent.getContent().getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        }
+        byte[] dictionary = trainer.trainSamples();
+
+        ApArticleContentDict dict = new ApArticleContentDict();
+        dict.setDictId(Zstd.getDictIdFromDict(dictionary));
+        dict.setDictionary(dictionary);
+        dict.setCreatedTime(new Date());
+        apArticleContentDictMapper.insert(dict);
+        articleContentCodec.reloadDictionary();
+
+        XxlJobHelper.log("Dictionary trained, dictId={}, samples={}", dict.getDictId(), ids.size());
+    }
+}
@@ -0,0 +1,40 @@
+package com.heima.article.mybatis;
+
+import org.apache.ibatis.type.BaseTypeHandler;
+import org.apache.ibatis.type.JdbcType;
+import org.apache.ibatis.type.MappedJdbcTypes;
+import org.apache.ibatis.type.MappedTypes;
+
+import java.sql.CallableStatement;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Compresses ap_article_content.content on write and decompresses it on read
+ * Registered on ApArticleContent.content, whose table uses autoResultMap so reads are decoded as well
+ */
+@MappedTypes(String.class)
+@MappedJdbcTypes(JdbcType.LONGVARBINARY)
+public class ArticleContentTypeHandler extends BaseTypeHandler<String> {
+
+    @Override
+    public void setNonNullParameter(PreparedStatement ps, int i, String parameter, JdbcType jdbcType) throws SQLException {
+        ps.setBytes(i, ArticleContentCodec.getInstance().encode(parameter));
+    }
+
+    @Override
+    public String getNullableResult(ResultSet rs, String columnName) throws SQLException {
+        return ArticleContentCodec.getInstance().decode(rs.getBytes(columnName));
+    }
+
+    @Override
+    public String getNullableResult(ResultSet rs, int columnIndex) throws SQLException {
+        return ArticleContentCodec.getInstance().decode(rs.getBytes(columnIndex));
+    }
+
+    @Override
+    public String getNullableResult(CallableStatement cs, int columnIndex) throws SQLException {
+        return ArticleContentCodec.getInstance().decode(cs.getBytes(columnIndex));
+    }
+}
@@ -0,0 +1,396 @@
+
+import com.alibaba.fastjson.JSON;
+import com.baomidou.mybatisplus.core.toolkit.Wrappers;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.DefaultStringTuple;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-channel home feed cache
+ * Redis: a sorted set of article IDs per channel scored by publishTime, plus one summary key per article.
+ * The floor key of a channel holds the publishTime above which the sorted set is complete (0 = the whole channel).
+ * JVM: the newest articles of each channel, kept for a few seconds in front of Redis.
+ */
+@Component
+@Slf4j
+public class ArticleFeedCache {
+
+    private final static String FEED_KEY = "article:feed:";
+    private final static String FLOOR_KEY = "article:feed:floor:";
+    private final static String SUMMARY_KEY = "article:feed:summary:";
+    private final static String FILL_LOCK = "article_feed_fill_";
+
+    /**
+     * Articles kept in the sorted set of each channel
+     */
+    private final static int FEED_WINDOW = 500;
+
+    /**
+     * Articles kept in the JVM for each channel
+     */
+    private final static int NEAR_WINDOW = 100;
+
+    private final static long NEAR_TTL_MILLIS = 2000;
+
+    private final static long FEED_TTL_HOURS = 24;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private CacheService cacheService;
+
+    @Autowired
+    private ApArticleMapper apArticleMapper;
+
+    @Autowired
+    private ApArticleConfigMapper apArticleConfigMapper;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    /**
+     * Read-write transaction of its own, so the fill reads the primary and not a lagging replica
+     */
+    private TransactionTemplate primaryTransactionTemplate;
+
+    @PostConstruct
+    public void initPrimaryTransactionTemplate() {
+        primaryTransactionTemplate = new TransactionTemplate(transactionManager);
+        primaryTransactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        primaryTransactionTemplate.setReadOnly(false);
+    }
+
+    private final LoadingCache<String, FeedWindow> nearCache = Caffeine.newBuilder()
+            .maximumSize(1000)
+            .expireAfterWrite(NEAR_TTL_MILLIS, TimeUnit.MILLISECONDS)
+            .build(this::loadWindow);
+
+    /**
+     * Load a page of the feed
+     * @param dto
+     * @param type 1 Load more   2 Load latest
+     * @param size
+     * @return the page, or null if it cannot be served from the cache
+     */
+    public List<ApArticle> load(ArticleHomeDto dto, Short type, int size) {
+        String tag = dto.getTag();
+        if (!isCacheable(tag)) {
+            return null;
+        }
+
+        //1. JVM window
+        FeedWindow window = nearCache.get(tag);
+        if (window.floor < 0) {
+            //The channel is not in Redis yet, load it once and serve the next requests from the cache
+            fill(tag);
+            return null;
+        }
+        List<ApArticle> result = window.slice(dto, type, size);
+        if (result != null) {
+            return result;
+        }
+
+        //2. Redis range query
+        return loadFromRedis(tag, window.floor, dto, type, size);
+    }
+
+    /**
+     * Add or refresh an article in the feed after the current transaction commits
+     * An article that is taken down or deleted is removed instead
+     * @param apArticle
+     */
+    public void put(ApArticle apArticle) {
+        if (apArticle.getId() == null || apArticle.getPublishTime() == null) {
+            return;
+        }
+        //Read in the caller's transaction, so a state changed by it is seen
+        ApArticleConfig config = apArticleConfigMapper.selectOne(Wrappers.<ApArticleConfig>lambdaQuery()
+                .eq(ApArticleConfig::getArticleId, apArticle.getId()));
+        if (config == null || Boolean.TRUE.equals(config.getIsDown()) || Boolean.TRUE.equals(config.getIsDelete())) {
+            remove(apArticle.getId());
+            return;
+        }
+        afterCommit(() -> {
+            String summaryKey = SUMMARY_KEY + apArticle.getId();
+            //The channel may have changed, take the article out of the old one
+            String old = stringRedisTemplate.opsForValue().get(summaryKey);
+            if (StringUtils.isNotBlank(old)) {
+                ApArticle oldArticle = JSON.parseObject(old, ApArticle.class);
+                if (oldArticle.getChannelId() != null && !oldArticle.getChannelId().equals(apArticle.getChannelId())) {
+                    stringRedisTemplate.opsForZSet().remove(FEED_KEY + oldArticle.getChannelId(), apArticle.getId().toString());
+                }
+            }
+            stringRedisTemplate.opsForValue().set(summaryKey, JSON.toJSONString(apArticle), FEED_TTL_HOURS, TimeUnit.HOURS);
+            addToFeed(ArticleConstants.DEFAULT_TAG, apArticle);
+            if (apArticle.getChannelId() != null) {
+                addToFeed(apArticle.getChannelId().toString(), apArticle);
+            }
+        });
+    }
+
+    /**
+     * Remove an article from the feed after the current transaction commits
+     * @param articleId
+     */
+    public void remove(Long articleId) {
+        afterCommit(() -> {
+            String member = articleId.toString();
+            String old = stringRedisTemplate.opsForValue().get(SUMMARY_KEY + articleId);
+            if (StringUtils.isNotBlank(old)) {
+                ApArticle oldArticle = JSON.parseObject(old, ApArticle.class);
+                if (oldArticle.getChannelId() != null) {
+                    stringRedisTemplate.opsForZSet().remove(FEED_KEY + oldArticle.getChannelId(), member);
+                }
+            }
+            stringRedisTemplate.opsForZSet().remove(FEED_KEY + ArticleConstants.DEFAULT_TAG, member);
+            stringRedisTemplate.delete(SUMMARY_KEY + articleId);
+        });
+    }
+
+    /**
+     * Load the newest articles of a channel from the database into Redis
+     * @param tag
+     */
+    private void fill(String tag) {
+        String token = cacheService.tryLock(FILL_LOCK + tag, 1000 * 10);
+        if (StringUtils.isBlank(token)) {
+            return;
+        }
+        ArticleHomeDto dto = new ArticleHomeDto();
+        dto.setTag(tag);
+        dto.setSize(FEED_WINDOW);
+        dto.setMinBehotTime(new Date());
+        dto.setMaxBehotTime(new Date());
+        //The rows are cached for FEED_TTL_HOURS, read them from the primary
+        List<ApArticle> articles = primaryTransactionTemplate.execute(
+                status -> apArticleMapper.loadArticleList(dto, ArticleConstants.LOADTYPE_LOAD_MORE));
+        if (articles.isEmpty() && !ArticleConstants.DEFAULT_TAG.equals(tag)) {
+            //No keys for a channel without articles, it may not exist at all
+            return;
+        }
+
+        //Summaries, sorted set and floor in one round trip
+        String feedKey = FEED_KEY + tag;
+        long ttl = TimeUnit.HOURS.toSeconds(FEED_TTL_HOURS);
+        Set<StringRedisConnection.StringTuple> tuples = new HashSet<>(articles.size());
+        for (ApArticle article : articles) {
+            tuples.add(new DefaultStringTuple(article.getId().toString(), article.getPublishTime().getTime()));
+        }
+        //Fewer rows than the window means the whole channel is cached
+        long floor = articles.size() < FEED_WINDOW ? 0 : articles.get(articles.size() - 1).getPublishTime().getTime();
+        stringRedisTemplate.executePipelined(new RedisCallback<Object>() {
+            @Override
+            public Object doInRedis(RedisConnection connection) throws DataAccessException {
+                StringRedisConnection stringRedisConn = (StringRedisConnection) connection;
+                for (ApArticle article : articles) {
+                    stringRedisConn.setEx(SUMMARY_KEY + article.getId(), ttl, JSON.toJSONString(article));
+                }
+                if (!tuples.isEmpty()) {
+                    stringRedisConn.zAdd(feedKey, tuples);
+                    stringRedisConn.expire(feedKey, ttl);
+                }
+                stringRedisConn.setEx(FLOOR_KEY + tag, ttl, String.valueOf(floor));
+                return null;
+            }
+        });
+        nearCache.invalidate(tag);
+        log.info("Feed cache filled, tag={}, articles={}", tag, articles.size());
+    }
+
+    /**
+     * Only the default tag and numeric channel IDs get Redis keys, any other tag is read from the database
+     * @param tag
+     * @return
+     */
+    private boolean isCacheable(String tag) {
+        return ArticleConstants.DEFAULT_TAG.equals(tag) || (StringUtils.isNumeric(tag) && tag.length() <= 9);
+    }
+
+    /**
+     * Add one article to a channel and trim the channel to the window size
+     * @param tag
+     * @param apArticle
+     */
+    private void addToFeed(String tag, ApArticle apArticle) {
+        String feedKey = FEED_KEY + tag;
+        String floor = stringRedisTemplate.opsForValue().get(FLOOR_KEY + tag);
+        if (floor == null) {
+            //Channel not cached, it is filled from the database on the next read
+            return;
+        }
+        ZSetOperations<String, String> zSet = stringRedisTemplate.opsForZSet();
+        zSet.add(feedKey, apArticle.getId().toString(), apArticle.getPublishTime().getTime());
+        Long count = zSet.zCard(feedKey);
+        if (count != null && count > FEED_WINDOW) {
+            zSet.removeRange(feedKey, 0, count - FEED_WINDOW - 1);
+            Set<ZSetOperations.TypedTuple<String>> lowest = zSet.rangeWithScores(feedKey, 0, 0);
+            if (lowest != null && !lowest.isEmpty()) {
+                long newFloor = lowest.iterator().next().getScore().longValue();
+                //The floor must not outlive the sorted set
+                Long ttl = stringRedisTemplate.getExpire(feedKey, TimeUnit.SECONDS);
+                if (ttl == null || ttl <= 0) {
+                    ttl = TimeUnit.HOURS.toSeconds(FEED_TTL_HOURS);
+                }
+                stringRedisTemplate.opsForValue().set(FLOOR_KEY + tag, String.valueOf(newFloor), ttl, TimeUnit.SECONDS);
+            }
+        }
+        nearCache.invalidate(tag);
+    }
+
+    /**
+     * Serve a page by score range from the sorted set
+     */
+    private List<ApArticle> loadFromRedis(String tag, long floor, ArticleHomeDto dto, Short type, int size) {
+        Set<String> ids;
+        if (type.equals(ArticleConstants.LOADTYPE_LOAD_NEW)) {
+            long max = dto.getMaxBehotTime().getTime();
+            ids = stringRedisTemplate.opsForZSet().reverseRangeByScore(FEED_KEY + tag, Math.max(max, floor) + 1, Double.MAX_VALUE, 0, size);
+            if (ids == null || (ids.size() < size && max < floor)) {
+                return null;
+            }
+        } else {
+            long min = dto.getMinBehotTime().getTime();
+            ids = stringRedisTemplate.opsForZSet().reverseRangeByScore(FEED_KEY + tag, floor + 1, min - 1, 0, size);
+            if (ids == null || (ids.size() < size && floor > 0)) {
+                return null;
+            }
+        }
+        return loadSummaries(ids);
+    }
+
+    /**
+     * Read the newest articles of a channel for the JVM window
+     * @param tag
+     * @return
+     */
+    private FeedWindow loadWindow(String tag) {
+        String floor = stringRedisTemplate.opsForValue().get(FLOOR_KEY + tag);
+        if (floor == null) {
+            return new FeedWindow(Collections.emptyList(), -1, false);
+        }
+        Set<String> ids = stringRedisTemplate.opsForZSet().reverseRange(FEED_KEY + tag, 0, NEAR_WINDOW - 1);
+        List<ApArticle> articles = ids == null ? null : loadSummaries(ids);
+        if (articles == null) {
+            //Summary expired, force reads through the database until the channel is filled again
+            stringRedisTemplate.delete(FLOOR_KEY + tag);
+            return new FeedWindow(Collections.emptyList(), -1, false);
+        }
+        return new FeedWindow(articles, Long.parseLong(floor), articles.size() < NEAR_WINDOW);
+    }
+
+    /**
+     * @param ids
+     * @return the summaries in the same order, or null if any of them is missing
+     */
+    private List<ApArticle> loadSummaries(Collection<String> ids) {
+        if (ids.isEmpty()) {
+            return new ArrayList<>();
+        }
+        List<String> keys = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            keys.add(SUMMARY_KEY + id);
+        }
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(keys);
+        if (values == null) {
+            return null;
+        }
+        List<ApArticle> articles = new ArrayList<>(values.size());
+        for (String value : values) {
+            if (value == null) {
+                return null;
+            }
+            articles.add(JSON.parseObject(value, ApArticle.class));
+        }
+        return articles;
+    }
+
+    private void afterCommit(Runnable runnable) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    runnable.run();
+                }
+            });
+        } else {
+            runnable.run();
+        }
+    }
+
+    /**
+     * Newest articles of one channel, ordered by publishTime descending
+     */
+    private static class FeedWindow {
+
+        private final List<ApArticle> articles;
+
+        /**
+         * -1 when the channel is not cached
+         */
+        private final long floor;
+
+        /**
+         * The window holds the whole sorted set
+         */
+        private final boolean whole;
+
+        FeedWindow(List<ApArticle> articles, long floor, boolean whole) {
+            this.articles = articles;
+            this.floor = floor;
+            this.whole = whole;
+        }
+
+        /**
+         * @return the page, or null if the window does not cover it
+         */
+        List<ApArticle> slice(ArticleHomeDto dto, Short type, int size) {
+            List<ApArticle> result = new ArrayList<>(size);
+            if (type.equals(ArticleConstants.LOADTYPE_LOAD_NEW)) {
+                long max = dto.getMaxBehotTime().getTime();
+                int i = 0;
+                while (i < articles.size() && result.size() < size && articles.get(i).getPublishTime().getTime() > max) {
+                    result.add(articles.get(i++));
+                }
+                //Covered when the page is full or an older article proves nothing newer is missing
+                boolean covered = result.size() == size || i < articles.size() || (whole && floor == 0);
+                return covered ? result : null;
+            }
+            long min = dto.getMinBehotTime().getTime();
+            for (ApArticle article : articles) {
+                if (article.getPublishTime().getTime() < min) {
+                    result.add(article);
+                    if (result.size() == size) {
+                        return result;
+                    }
+                }
+            }
+            return whole && floor == 0 ? result : null;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+
+import lombok.Data;
+
+@Data
+public class ArticleFeedCursorDto {
+
+    /**
+     * Channel ID, __all__ for all channels
+     */
+    private String tag;
+
+    /**
+     * Page size
+     */
+    private Integer size;
+
+    /**
+     * Cursor returned with the previous page, empty for the first page
+     */
+    private String cursor;
+}
@@ -0,0 +1,190 @@
+
+import com.alibaba.fastjson.JSON;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assembles article pages from pre-rendered block fragments
+ * article-shell.ftl renders the page around ${blocks}, article-block.ftl renders one content block as ${block}
+ * Rendered blocks are cached by the hash of the block and the block template, only blocks not seen before are rendered
+ * Without the two templates the page is rendered from article.ftl as before
+ */
+@Component
+@Slf4j
+public class ArticleFragmentRenderer {
+
+    private final static String SHELL_TEMPLATE = "article-shell.ftl";
+
+    private final static String BLOCK_TEMPLATE = "article-block.ftl";
+
+    /**
+     * Put into the shell in place of the blocks, the shell output is split around it
+     */
+    private final static String BLOCKS_SLOT = "@@ARTICLE_BLOCKS@@";
+
+    private final static long MAX_CACHE_BYTES = 64 * 1024 * 1024;
+
+    private final static long TEMPLATE_RELOAD_MILLIS = 60 * 1000;
+
+    @Autowired
+    private Configuration configuration;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final Cache<String, byte[]> fragments = Caffeine.newBuilder()
+            .maximumWeight(MAX_CACHE_BYTES)
+            .weigher((String key, byte[] value) -> key.length() + value.length)
+            .build();
+
+    private volatile Shell shell;
+
+    private volatile long shellLoadedAt;
+
+    private Counter hitCounter;
+
+    private Counter missCounter;
+
+    private Counter savedCounter;
+
+    /**
+     * Average nanos of rendering one block, what a hit saves
+     */
+    private volatile double blockRenderNanos;
+
+    @PostConstruct
+    public void initMetrics() {
+        hitCounter = meterRegistry.counter("article.render.fragment", "result", "hit");
+        missCounter = meterRegistry.counter("article.render.fragment", "result", "miss");
+        savedCounter = meterRegistry.counter("article.render.fragment.saved.seconds");
+    }
+
+    /**
+     * Fingerprint of the shell and block templates, empty when fragment rendering is not available
+     * @return
+     */
+    public String fingerprint() {
+        Shell current = shell();
+        return current == null ? "" : current.fingerprint;
+    }
+
+    /**
+     * Write the page assembled from fragments
+     * @param blocks parsed content blocks
+     * @param out receives the UTF-8 page
+     * @return false if the fragment templates are missing and nothing was written
+     */
+    public boolean render(List<Map> blocks, OutputStream out) throws Exception {
+        Shell current = shell();
+        if (current == null) {
+            return false;
+        }
+        out.write(current.head);
+        for (Map block : blocks) {
+            out.write(fragment(current, block));
+        }
+        out.write(current.tail);
+        return true;
+    }
+
+    private byte[] fragment(Shell current, Map block) throws Exception {
+        String key = ArticleRenderFingerprint.md5(current.blockFingerprint, JSON.toJSONString(block));
+        byte[] html = fragments.getIfPresent(key);
+        if (html != null) {
+            hitCounter.increment();
+            savedCounter.increment(blockRenderNanos / 1e9);
+            return html;
+        }
+
+        long start = System.nanoTime();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        Writer writer = new OutputStreamWriter(bytes, StandardCharsets.UTF_8);
+        current.block.process(Collections.singletonMap("block", block), writer);
+        writer.flush();
+        html = bytes.toByteArray();
+        long nanos = System.nanoTime() - start;
+        blockRenderNanos = blockRenderNanos == 0 ? nanos : blockRenderNanos * 0.9 + nanos * 0.1;
+
+        fragments.put(key, html);
+        missCounter.increment();
+        return html;
+    }
+
+    /**
+     * Shell and block template, looked up again every TEMPLATE_RELOAD_MILLIS, null while they are missing
+     * @return
+     */
+    private Shell shell() {
+        long now = System.currentTimeMillis();
+        if (now - shellLoadedAt > TEMPLATE_RELOAD_MILLIS) {
+            shellLoadedAt = now;
+            try {
+                Template shellTemplate = configuration.getTemplate(SHELL_TEMPLATE);
+                Template blockTemplate = configuration.getTemplate(BLOCK_TEMPLATE);
+                Shell current = shell;
+                if (current == null || current.shellTemplate != shellTemplate || current.block != blockTemplate) {
+                    shell = new Shell(shellTemplate, blockTemplate);
+                }
+            } catch (Exception e) {
+                if (shell != null) {
+                    log.warn("Fragment templates unavailable, article pages are rendered whole", e);
+                }
+                shell = null;
+            }
+        }
+        return shell;
+    }
+
+    /**
+     * Rendered shell split around the blocks slot
+     */
+    private static class Shell {
+
+        private final Template shellTemplate;
+
+        private final Template block;
+
+        private final byte[] head;
+
+        private final byte[] tail;
+
+        private final String blockFingerprint;
+
+        private final String fingerprint;
+
+        Shell(Template shellTemplate, Template block) throws Exception {
+            this.shellTemplate = shellTemplate;
+            this.block = block;
+            StringWriter out = new StringWriter();
+            shellTemplate.process(Collections.singletonMap("blocks", BLOCKS_SLOT), out);
+            String page = out.toString();
+            int slot = page.indexOf(BLOCKS_SLOT);
+            if (slot < 0) {
+                throw new IOException(SHELL_TEMPLATE + " does not output ${blocks}");
+            }
+            this.head = page.substring(0, slot).getBytes(StandardCharsets.UTF_8);
+            this.tail = page.substring(slot + BLOCKS_SLOT.length()).getBytes(StandardCharsets.UTF_8);
+            this.blockFingerprint = ArticleRenderFingerprint.md5(block.toString());
+            this.fingerprint = ArticleRenderFingerprint.md5(shellTemplate.toString(), blockFingerprint);
+        }
+    }
+}
@@ -1,4 +1,7 @@
 
+import com.aayushatharva.brotli4j.Brotli4jLoader;
+import com.aayushatharva.brotli4j.encoder.BrotliOutputStream;
+import com.aayushatharva.brotli4j.encoder.Encoder;
 import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.JSONArray;
 import com.baomidou.mybatisplus.core.toolkit.Wrappers;
@@ -9,16 +12,38 @@ import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.kafka.core.KafkaTemplate;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
-import java.io.ByteArrayInputStream;
-import java.io.InputStream;
-import java.io.StringWriter;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
 
 @Service
 @Slf4j
@@ -32,11 +57,97 @@ public class ArticleFreemarkerServiceImpl implements ArticleFreemarkerService {
     private Configuration configuration;
 
     @Autowired
-    private FileStorageService fileStorageService;
+    private ArticleHtmlStorage articleHtmlStorage;
+
+    @Autowired
+    private ArticleFragmentRenderer articleFragmentRenderer;
 
     @Autowired
     private ApArticleService apArticleService;
 
+    @Autowired
+    private ArticleFeedCache articleFeedCache;
+
+    @Autowired
+    private ApArticleFeedMapper apArticleFeedMapper;
+
+    @Autowired
+    private ArticleRenderFingerprint articleRenderFingerprint;
+
+    private volatile Template fingerprintedTemplate;
+
+    private volatile String templateFingerprint;
+
+    /**
+     * Bytes buffered between the renderer and the uploader
+     */
+    private final static int RENDER_BUFFER_BYTES = 64 * 1024;
+
+    private final static long UPLOAD_TIMEOUT_SECONDS = 60;
+
+    /**
+     * The compiled template is looked up again after this delay, so template changes are still picked up
+     */
+    private final static long TEMPLATE_RELOAD_MILLIS = 60 * 1000;
+
+    private volatile Template articleTemplate;
+
+    private volatile long articleTemplateLoadedAt;
+
+    /**
+     * Brotli quality for pages compressed while streaming, 11 is too slow for the render path
+     */
+    private final static int BROTLI_QUALITY = 5;
+
+    private final static boolean BROTLI_AVAILABLE = Brotli4jLoader.isAvailable();
+
+    /**
+     * Pages rendered into MinIO at the same time, each one runs up to UPLOADS_PER_RENDER uploads
+     */
+    private final static int MAX_CONCURRENT_RENDERS = 16;
+
+    /**
+     * Raw, gzip and brotli
+     */
+    private final static int UPLOADS_PER_RENDER = 3;
+
+    private final Semaphore renderPermits = new Semaphore(MAX_CONCURRENT_RENDERS);
+
+    /**
+     * Uploaders read the pipes while the renderers write them
+     * The pool has a thread for every upload renderPermits lets run, so no renderer blocks on a pipe whose uploader is queued
+     */
+    private final ExecutorService uploadExecutor = newUploadExecutor();
+
+    private static ExecutorService newUploadExecutor() {
+        int threads = MAX_CONCURRENT_RENDERS * UPLOADS_PER_RENDER;
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "article-html-upload-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Receives the pages rendered only to compare their digest
+     */
+    private final static OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
     /**
      * Generate static files and upload to MinIO
      * @param apArticle
@@ -45,55 +156,465 @@ public class ArticleFreemarkerServiceImpl implements ArticleFreemarkerService {
     @Async
     @Override
     public void buildArticleToMinIO(ApArticle apArticle, String content) {
+        renderArticle(apArticle, content);
+    }
+
+    /**
+     * Generate static files in the calling thread, stages with unchanged input are skipped
+     * @param apArticle
+     * @param content
+     * @return false if the page could not be generated
+     */
+    @Override
+    public boolean renderArticle(ApArticle apArticle, String content) {
         //Known article ID
         //4.1 Get article content
         if(StringUtils.isNotBlank(content)){
+            //Stage fingerprints of the last build, a stage is skipped when its input has not changed
+            Map<String,String> stored = articleRenderFingerprint.load(apArticle.getId());
+            Map<String,String> current = new HashMap<>();
+            String path = stored.get(ArticleRenderFingerprint.STAGE_STATIC_URL);
+
             //4.2 Generate HTML file for article content using Freemarker
-            Template template = null;
-            StringWriter out = new StringWriter();
+            Template template;
             try {
-                template = configuration.getTemplate("article.ftl");
-                //Data model
-                Map<String,Object> contentDataModel = new HashMap<>();
-                contentDataModel.put("content", JSONArray.parseArray(content));
-                //Synthesize
-                template.process(contentDataModel,out);
-            } catch (Exception e) {
-                e.printStackTrace();
+                template = articleTemplate();
+            } catch (IOException e) {
+                log.error("Article template load failed", e);
+                return false;
             }
+            String renderInput = ArticleRenderFingerprint.md5(templateFingerprint(template), articleFragmentRenderer.fingerprint(), content);
+            current.put(ArticleRenderFingerprint.STAGE_RENDER, renderInput);
+            String contentHash = ArticleRenderFingerprint.md5(content);
+            current.put(ArticleRenderFingerprint.CONTENT, contentHash);
+            boolean renderSkipped = path != null && renderInput.equals(stored.get(ArticleRenderFingerprint.STAGE_RENDER));
+            articleRenderFingerprint.count(ArticleRenderFingerprint.STAGE_RENDER, renderSkipped);
 
-
-            //4.3 Upload the HTML file to MinIO
-            InputStream in = new ByteArrayInputStream(out.toString().getBytes());
-            String path = fileStorageService.uploadHtmlFile("", apArticle.getId() + ".html", in);
-
+            if(!renderSkipped){
+                //4.3 Render straight into the MinIO upload
+                //Only a template or fragment change can leave the page as it was, then it is checked before uploading again
+                try {
+                    List<Map> blocks = JSONArray.parseArray(content, Map.class);
+                    boolean contentUnchanged = contentHash.equals(stored.get(ArticleRenderFingerprint.CONTENT));
+                    boolean uploadSkipped = path != null && contentUnchanged && pageUnchanged(template, blocks, stored, current);
+                    articleRenderFingerprint.count(ArticleRenderFingerprint.STAGE_UPLOAD, uploadSkipped);
+                    if(!uploadSkipped){
+                        path = renderToMinIO(template, blocks, articleHtmlStorage.builderFilePath(apArticle.getId() + ".html"), current);
+                    }
+                } catch (Exception e) {
+                    log.error("Static page generation failed, articleId={}", apArticle.getId(), e);
+                    return false;
+                }
+            } else {
+                articleRenderFingerprint.count(ArticleRenderFingerprint.STAGE_UPLOAD, true);
+            }
 
             //4.4 Modify the ap_article table, Save the static_url field
-            apArticleService.update(Wrappers.<ApArticle>lambdaUpdate().eq(ApArticle::getId,apArticle.getId())
-                    .set(ApArticle::getStaticUrl,path));
+            boolean staticUrlSkipped = path.equals(stored.get(ArticleRenderFingerprint.STAGE_STATIC_URL));
+            articleRenderFingerprint.count(ArticleRenderFingerprint.STAGE_STATIC_URL, staticUrlSkipped);
+            if(!staticUrlSkipped){
+                apArticleService.update(Wrappers.<ApArticle>lambdaUpdate().eq(ApArticle::getId,apArticle.getId())
+                        .set(ApArticle::getStaticUrl,path));
+            }
+            current.put(ArticleRenderFingerprint.STAGE_STATIC_URL, path);
+
+            //Refresh the feed cache and the feed projection, the summary carries the static_url
+            apArticle.setStaticUrl(path);
+            articleFeedCache.put(apArticle);
+            ApArticleFeed apArticleFeed = new ApArticleFeed();
+            BeanUtils.copyProperties(apArticle, apArticleFeed);
+            apArticleFeedMapper.upsert(apArticleFeed);
 
             //Send message, Create index
-            createArticleESIndex(apArticle,content,path);
+            String esInput = createArticleESIndex(apArticle,content,path,stored.get(ArticleRenderFingerprint.STAGE_ES_SYNC));
+            current.put(ArticleRenderFingerprint.STAGE_ES_SYNC, esInput);
+
+            //Keep the fingerprints of skipped stages
+            for (Map.Entry<String, String> entry : stored.entrySet()) {
+                current.putIfAbsent(entry.getKey(), entry.getValue());
+            }
+            articleRenderFingerprint.save(apArticle.getId(), current);
+        }
+        return true;
+    }
+
+    /**
+     * Regenerate the static page of a published article in place
+     * The page is written to the object it already has, static_url, the feed and the search index are left alone
+     * @param apArticle
+     * @param content
+     * @return false if the page could not be generated
+     */
+    @Override
+    public boolean rerenderArticle(ApArticle apArticle, String content) {
+        if(StringUtils.isBlank(content)){
+            return true;
+        }
+        //1. The existing object, an article without a page is generated by the publish flow
+        String filePath = articleHtmlStorage.objectPath(apArticle.getStaticUrl());
+        if(filePath == null){
+            log.warn("Article has no static page to rerender, articleId={}, staticUrl={}", apArticle.getId(), apArticle.getStaticUrl());
+            return false;
+        }
+
+        //2. Skip when template and content are unchanged
+        Template template;
+        try {
+            template = articleTemplate();
+        } catch (IOException e) {
+            log.error("Article template load failed", e);
+            return false;
+        }
+        Map<String,String> stored = articleRenderFingerprint.load(apArticle.getId());
+        String renderInput = ArticleRenderFingerprint.md5(templateFingerprint(template), articleFragmentRenderer.fingerprint(), content);
+        boolean renderSkipped = renderInput.equals(stored.get(ArticleRenderFingerprint.STAGE_RENDER));
+        articleRenderFingerprint.count(ArticleRenderFingerprint.STAGE_RENDER, renderSkipped);
+        if(renderSkipped){
+            return true;
+        }
+
+        //3. Overwrite the page unless it comes out the same, only the render fingerprints change
+        Map<String,String> current = new HashMap<>(stored);
+        current.put(ArticleRenderFingerprint.STAGE_RENDER, renderInput);
+        current.put(ArticleRenderFingerprint.CONTENT, ArticleRenderFingerprint.md5(content));
+        try {
+            List<Map> blocks = JSONArray.parseArray(content, Map.class);
+            boolean uploadSkipped = pageUnchanged(template, blocks, stored, current);
+            articleRenderFingerprint.count(ArticleRenderFingerprint.STAGE_UPLOAD, uploadSkipped);
+            if(!uploadSkipped){
+                renderToMinIO(template, blocks, filePath, current);
+            }
+        } catch (Exception e) {
+            log.error("Static page rerender failed, articleId={}", apArticle.getId(), e);
+            return false;
+        }
+        articleRenderFingerprint.save(apArticle.getId(), current);
+        return true;
+    }
+
+    /**
+     * Render the page into a digest only and compare it with the digest of the uploaded page
+     * @param template
+     * @param blocks
+     * @param stored
+     * @param current receives the fingerprint of the page when it is unchanged
+     * @return true if the uploaded page is byte for byte the same
+     */
+    private boolean pageUnchanged(Template template, List<Map> blocks, Map<String,String> stored, Map<String,String> current) throws Exception {
+        String uploaded = stored.get(ArticleRenderFingerprint.STAGE_UPLOAD);
+        if(uploaded == null){
+            return false;
+        }
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        renderPage(template, blocks, new DigestOutputStream(DISCARD, digest));
+        String html = ArticleRenderFingerprint.hex(digest.digest());
+        if(!html.equals(uploaded)){
+            return false;
+        }
+        current.put(ArticleRenderFingerprint.STAGE_UPLOAD, html);
+        return true;
+    }
 
+    /**
+     * Write the page as UTF-8
+     * @param template
+     * @param blocks
+     * @param page
+     */
+    private void renderPage(Template template, List<Map> blocks, OutputStream page) throws Exception {
+        //Assemble from cached block fragments, render the whole page only without the fragment templates
+        if(!articleFragmentRenderer.render(blocks, page)){
+            Writer out = new OutputStreamWriter(page, StandardCharsets.UTF_8);
+            //Data model
+            Map<String,Object> contentDataModel = new HashMap<>();
+            contentDataModel.put("content", blocks);
+            //Synthesize
+            template.process(contentDataModel, out);
+            out.flush();
+        }
+    }
+
+    /**
+     * Render the page as UTF-8 and upload it raw, gzip and brotli encoded in the same pass
+     * Each encoding goes through its own bounded pipe to its own multipart upload, the page is never held in memory as a whole
+     * Objects: <id>.html, <id>.html.gz, <id>.html.br, the compressed ones carry Content-Encoding
+     * At most MAX_CONCURRENT_RENDERS run at a time, callers beyond that wait
+     * @param template
+     * @param blocks
+     * @param filePath object path of the raw page, all encodings share it even when the upload crosses midnight
+     * @param current receives the fingerprint of the uploaded HTML
+     * @return URL of the raw page
+     */
+    private String renderToMinIO(Template template, List<Map> blocks, String filePath, Map<String,String> current) throws Exception {
+        renderPermits.acquire();
+        try {
+            return renderToUploads(template, blocks, filePath, current);
+        } finally {
+            renderPermits.release();
         }
     }
 
+    private String renderToUploads(Template template, List<Map> blocks, String filePath, Map<String,String> current) throws Exception {
+        List<PipedInputStream> ins = new ArrayList<>();
+        List<Future<String>> uploads = new ArrayList<>();
+        List<AbortableOutputStream> sinks = new ArrayList<>();
+        List<OutputStream> branches = new ArrayList<>();
+        try {
+            branches.add(openUpload(filePath, null, ins, uploads, sinks));
+            branches.add(new GZIPOutputStream(openUpload(filePath + ".gz", "gzip", ins, uploads, sinks), RENDER_BUFFER_BYTES));
+            if(BROTLI_AVAILABLE){
+                Encoder.Parameters parameters = new Encoder.Parameters().setQuality(BROTLI_QUALITY);
+                branches.add(new BrotliOutputStream(openUpload(filePath + ".br", "br", ins, uploads, sinks), parameters));
+            }
+
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            OutputStream page = new DigestOutputStream(new FanOutOutputStream(branches), digest);
+            renderPage(template, blocks, page);
+            //Only a complete page ends the streams, a failed render leaves them open so the uploads abort
+            page.close();
+
+            String path = uploads.get(0).get(UPLOAD_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            for (int i = 1; i < uploads.size(); i++) {
+                uploads.get(i).get(UPLOAD_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            }
+            current.put(ArticleRenderFingerprint.STAGE_UPLOAD, ArticleRenderFingerprint.hex(digest.digest()));
+            return path;
+        } catch (Exception e) {
+            try {
+                //Abort the uploads instead of storing truncated pages
+                for (Future<String> upload : uploads) {
+                    upload.cancel(true);
+                }
+                for (PipedInputStream in : ins) {
+                    in.close();
+                }
+            } finally {
+                //Release the deflater and the native brotli encoder, the detached sinks keep the pipes from being ended
+                for (AbortableOutputStream sink : sinks) {
+                    sink.abort();
+                }
+                for (OutputStream branch : branches) {
+                    try {
+                        branch.close();
+                    } catch (Exception ignored) {
+                    }
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Start the upload of one encoding
+     * @return the stream feeding the upload
+     */
+    private AbortableOutputStream openUpload(String filePath, String contentEncoding, List<PipedInputStream> ins,
+                                             List<Future<String>> uploads, List<AbortableOutputStream> sinks) throws IOException {
+        PipedInputStream in = new PipedInputStream(RENDER_BUFFER_BYTES);
+        PipedOutputStream pipe = new PipedOutputStream(in);
+        ins.add(in);
+        uploads.add(uploadExecutor.submit(() -> {
+            try {
+                return articleHtmlStorage.uploadHtmlObject(filePath, contentEncoding, in);
+            } finally {
+                //Unblocks the renderer if the upload fails
+                in.close();
+            }
+        }));
+        AbortableOutputStream sink = new AbortableOutputStream(pipe);
+        sinks.add(sink);
+        return sink;
+    }
+
+    /**
+     * Pipe end of an upload, once aborted writes are dropped and close does not end the pipe
+     */
+    private static class AbortableOutputStream extends OutputStream {
+
+        private final OutputStream out;
+
+        private volatile boolean aborted;
+
+        AbortableOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        void abort() {
+            aborted = true;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!aborted) {
+                out.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (!aborted) {
+                out.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (!aborted) {
+                out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!aborted) {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Writes every byte to all branches, closing it finishes the compressed streams and the pipes
+     */
+    private static class FanOutOutputStream extends OutputStream {
+
+        private final List<OutputStream> branches;
+
+        FanOutOutputStream(List<OutputStream> branches) {
+            this.branches = branches;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            for (OutputStream branch : branches) {
+                branch.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            for (OutputStream branch : branches) {
+                branch.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            for (OutputStream branch : branches) {
+                branch.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            IOException failure = null;
+            for (OutputStream branch : branches) {
+                try {
+                    branch.close();
+                } catch (IOException e) {
+                    failure = failure == null ? e : failure;
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Compiled article template, looked up again every TEMPLATE_RELOAD_MILLIS
+     * @return
+     */
+    private Template articleTemplate() throws IOException {
+        long now = System.currentTimeMillis();
+        if(articleTemplate == null || now - articleTemplateLoadedAt > TEMPLATE_RELOAD_MILLIS){
+            articleTemplate = configuration.getTemplate("article.ftl");
+            articleTemplateLoadedAt = now;
+        }
+        return articleTemplate;
+    }
+
+    @PreDestroy
+    public void shutdownUploadExecutor() {
+        uploadExecutor.shutdown();
+    }
+
+    /**
+     * Hash of the template source, recomputed only when Freemarker loads a new template
+     * @param template
+     * @return
+     */
+    private String templateFingerprint(Template template) {
+        if(template == null){
+            return "";
+        }
+        if(template != fingerprintedTemplate){
+            templateFingerprint = ArticleRenderFingerprint.md5(template.toString());
+            fingerprintedTemplate = template;
+        }
+        return templateFingerprint;
+    }
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    /**
+     * One transaction per article of a batch, a failed article does not roll back the others
+     */
+    private TransactionTemplate articleTransactionTemplate;
+
+    @PostConstruct
+    public void initArticleTransactionTemplate() {
+        articleTransactionTemplate = new TransactionTemplate(transactionManager);
+        articleTransactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    }
+
+    /**
+     * Generate static files for a batch of articles, each article in its own transaction
+     * @param apArticles
+     * @param contents article ID -> content
+     */
+    @Async
+    @Override
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void buildArticlesToMinIO(List<ApArticle> apArticles, Map<Long, String> contents) {
+        long start = System.currentTimeMillis();
+        for (ApArticle apArticle : apArticles) {
+            try {
+                articleTransactionTemplate.execute(status -> renderArticle(apArticle, contents.get(apArticle.getId())));
+            } catch (Exception e) {
+                log.error("Static page generation failed, articleId={}", apArticle.getId(), e);
+            }
+        }
+        log.info("Static pages generated, articles={}, cost={}ms", apArticles.size(), System.currentTimeMillis() - start);
+    }
+
     @Autowired
-    private KafkaTemplate<String,String> kafkaTemplate;
+    private KafkaOutboxService kafkaOutboxService;
 
     /**
      * Send message, Create index
      * @param apArticle
      * @param content
      * @param path
+     * @param lastInput fingerprint of the last message sent
+     * @return fingerprint of the message
      */
-    private void createArticleESIndex(ApArticle apArticle, String content, String path) {
+    private String createArticleESIndex(ApArticle apArticle, String content, String path, String lastInput) {
         SearchArticleVo vo = new SearchArticleVo();
         BeanUtils.copyProperties(apArticle,vo);
-        vo.setContent(content);
+        //Only the text is searched, the block JSON and image URLs are not sent
+        vo.setContent(ArticleSearchDocumentUtils.plainText(content));
         vo.setStaticUrl(path);
 
-        kafkaTemplate.send(ArticleConstants.ARTICLE_ES_SYNC_TOPIC, JSON.toJSONString(vo));
+        String message = JSON.toJSONString(vo);
+        String input = ArticleRenderFingerprint.md5(message);
+        boolean skipped = input.equals(lastInput);
+        articleRenderFingerprint.count(ArticleRenderFingerprint.STAGE_ES_SYNC, skipped);
+        if(!skipped){
+            //Save message to the outbox, it is sent only after the transaction commits
+            kafkaOutboxService.enqueue(ArticleConstants.ARTICLE_ES_SYNC_TOPIC, String.valueOf(apArticle.getId()), message);
+        }
+        return input;
     }
 
 }
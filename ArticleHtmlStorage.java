@@ -0,0 +1,127 @@
+
+import io.minio.MinioClient;
+import io.minio.PutObjectArgs;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+
+/**
+ * Uploads article pages of unknown length to MinIO, small pages in one request and large ones as a chunked multipart upload
+ * Object path and returned URL follow FileStorageService.uploadHtmlFile
+ */
+@Component
+@Slf4j
+public class ArticleHtmlStorage {
+
+    /**
+     * Multipart part size, the smallest one S3 accepts
+     */
+    private final static long PART_SIZE = 5 * 1024 * 1024;
+
+    /**
+     * Pages up to this size are read ahead and put with a known length, so they never allocate a PART_SIZE buffer
+     */
+    private final static int SMALL_PAGE_BYTES = 256 * 1024;
+
+    private final static String separator = "/";
+
+    @Autowired
+    private MinioClient minioClient;
+
+    @Autowired
+    private MinIOConfigProperties minIOConfigProperties;
+
+    /**
+     * Upload an HTML page read from a stream
+     * @param filename
+     * @param inputStream stream of unknown length, read until the end
+     * @return file URL
+     */
+    public String uploadHtmlFile(String filename, InputStream inputStream) throws Exception {
+        return uploadHtmlObject(builderFilePath(filename), null, inputStream);
+    }
+
+    /**
+     * Upload one encoding of an HTML page to a path from builderFilePath
+     * @param filePath
+     * @param contentEncoding gzip, br, or null for the raw page
+     * @param inputStream stream of unknown length, read until the end
+     * @return file URL
+     */
+    public String uploadHtmlObject(String filePath, String contentEncoding, InputStream inputStream) throws Exception {
+        PutObjectArgs.Builder builder = PutObjectArgs.builder()
+                .object(filePath)
+                .contentType("text/html; charset=utf-8")
+                .bucket(minIOConfigProperties.getBucket());
+        //A stream of unknown length needs PART_SIZE parts, read ahead to find the small pages
+        byte[] head = new byte[SMALL_PAGE_BYTES];
+        int length = readFully(inputStream, head);
+        if (length < head.length) {
+            builder.stream(new ByteArrayInputStream(head, 0, length), length, -1);
+        } else {
+            builder.stream(new SequenceInputStream(new ByteArrayInputStream(head), inputStream), -1, PART_SIZE);
+        }
+        if (contentEncoding != null) {
+            builder.headers(Collections.singletonMap("Content-Encoding", contentEncoding));
+        }
+        minioClient.putObject(builder.build());
+
+        StringBuilder urlPath = new StringBuilder(minIOConfigProperties.getReadPath());
+        urlPath.append(separator).append(minIOConfigProperties.getBucket());
+        urlPath.append(separator);
+        urlPath.append(filePath);
+        return urlPath.toString();
+    }
+
+    /**
+     * Read until the buffer is full or the stream ends
+     * @param inputStream
+     * @param buffer
+     * @return bytes read
+     */
+    private int readFully(InputStream inputStream, byte[] buffer) throws IOException {
+        int length = 0;
+        while (length < buffer.length) {
+            int n = inputStream.read(buffer, length, buffer.length - length);
+            if (n < 0) {
+                break;
+            }
+            length += n;
+        }
+        return length;
+    }
+
+    /**
+     * Object path of a URL returned by uploadHtmlObject
+     * @param url
+     * @return null if the URL is not in this bucket
+     */
+    public String objectPath(String url) {
+        String prefix = minIOConfigProperties.getReadPath() + separator + minIOConfigProperties.getBucket() + separator;
+        if (url == null || !url.startsWith(prefix)) {
+            return null;
+        }
+        return url.substring(prefix.length());
+    }
+
+    /**
+     * yyyy/MM/dd/filename
+     * @param filename
+     * @return
+     */
+    public String builderFilePath(String filename) {
+        StringBuilder stringBuilder = new StringBuilder(50);
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyy/MM/dd");
+        stringBuilder.append(sdf.format(new Date())).append(separator);
+        stringBuilder.append(filename);
+        return stringBuilder.toString();
+    }
+}
@@ -0,0 +1,66 @@
+
+import com.alibaba.fastjson.JSON;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Consume article up/down messages in windows
+ * Repeated toggles of the same article inside a window become one write, offsets are committed after the batch is applied
+ */
+@Component
+@Slf4j
+public class ArticleIsDownBatchListener {
+
+    @Autowired
+    private ApArticleConfigService apArticleConfigService;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private Counter receivedCounter;
+
+    private Counter appliedCounter;
+
+    @PostConstruct
+    public void initMetrics() {
+        receivedCounter = meterRegistry.counter("article.config.updown.received");
+        appliedCounter = meterRegistry.counter("article.config.updown.applied");
+        //Messages received per article written, 1 means nothing was coalesced
+        Gauge.builder("article.config.updown.coalescing.ratio", this,
+                l -> l.appliedCounter.count() == 0 ? 1 : l.receivedCounter.count() / l.appliedCounter.count())
+                .register(meterRegistry);
+    }
+
+    @KafkaListener(topics = WmNewsMessageConstants.WM_NEWS_UP_OR_DOWN_TOPIC,
+            containerFactory = ArticleKafkaConfig.COALESCING_BATCH_FACTORY)
+    public void onMessages(List<ConsumerRecord<String, String>> records, Acknowledgment acknowledgment) {
+        List<Map> maps = new ArrayList<>(records.size());
+        for (ConsumerRecord<String, String> record : records) {
+            if (StringUtils.isNotBlank(record.value())) {
+                maps.add(JSON.parseObject(record.value(), Map.class));
+            }
+        }
+
+        int applied = maps.isEmpty() ? 0 : apArticleConfigService.updateByMaps(maps);
+
+        //Commit offsets only after the batch is in the database
+        acknowledgment.acknowledge();
+
+        receivedCounter.increment(records.size());
+        appliedCounter.increment(applied);
+        log.info("Article up/down batch, received={}, applied={}", records.size(), applied);
+    }
+}
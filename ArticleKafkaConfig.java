@@ -0,0 +1,58 @@
+
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.springframework.boot.autoconfigure.kafka.KafkaProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.kafka.config.ConcurrentKafkaListenerContainerFactory;
+import org.springframework.kafka.core.DefaultKafkaConsumerFactory;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.listener.ContainerProperties;
+import org.springframework.kafka.listener.DeadLetterPublishingRecoverer;
+import org.springframework.kafka.listener.RetryingBatchErrorHandler;
+import org.springframework.util.backoff.FixedBackOff;
+
+import java.util.Map;
+
+@Configuration
+public class ArticleKafkaConfig {
+
+    public final static String COALESCING_BATCH_FACTORY = "coalescingBatchFactory";
+
+    /**
+     * How long the broker may hold a fetch to fill a window
+     */
+    private final static int WINDOW_MILLIS = 500;
+
+    /**
+     * Deliveries of a failing batch before its records are dead lettered
+     */
+    private final static long MAX_ATTEMPTS = 3;
+
+    private final static long RETRY_INTERVAL_MILLIS = 1000;
+
+    private final static int MAX_WINDOW_RECORDS = 2000;
+
+    /**
+     * Batch listener container: records are collected for up to WINDOW_MILLIS and offsets are committed manually
+     * @param kafkaProperties
+     * @param kafkaTemplate publishes records that failed MAX_ATTEMPTS times
+     * @return
+     */
+    @Bean(COALESCING_BATCH_FACTORY)
+    public ConcurrentKafkaListenerContainerFactory<String, String> coalescingBatchFactory(KafkaProperties kafkaProperties, KafkaTemplate<String, String> kafkaTemplate) {
+        Map<String, Object> props = kafkaProperties.buildConsumerProperties();
+        props.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
+        props.put(ConsumerConfig.FETCH_MIN_BYTES_CONFIG, 1024 * 1024);
+        props.put(ConsumerConfig.FETCH_MAX_WAIT_MS_CONFIG, WINDOW_MILLIS);
+        props.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, MAX_WINDOW_RECORDS);
+
+        ConcurrentKafkaListenerContainerFactory<String, String> factory = new ConcurrentKafkaListenerContainerFactory<>();
+        factory.setConsumerFactory(new DefaultKafkaConsumerFactory<>(props));
+        factory.setBatchListener(true);
+        factory.getContainerProperties().setAckMode(ContainerProperties.AckMode.MANUAL);
+        //A failed batch is retried, after MAX_ATTEMPTS its records go to the <topic>.DLT dead letter topic and the batch is committed
+        factory.setBatchErrorHandler(new RetryingBatchErrorHandler(new FixedBackOff(RETRY_INTERVAL_MILLIS, MAX_ATTEMPTS - 1),
+                new DeadLetterPublishingRecoverer(kafkaTemplate)));
+        return factory;
+    }
+}
@@ -0,0 +1,291 @@
+
+import com.alibaba.fastjson.JSON;
+import com.xxl.job.core.context.XxlJobHelper;
+import com.xxl.job.core.handler.annotation.XxlJob;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest;
+import org.elasticsearch.action.admin.indices.alias.get.GetAliasesRequest;
+import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsRequest;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsResponse;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.indices.CreateIndexRequest;
+import org.elasticsearch.client.indices.GetIndexRequest;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StreamUtils;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Rebuild app_info_article into a new versioned index and switch the alias to it
+ * Live updates are written to the new index while it is built, the backfill only creates documents that are not there yet
+ * Articles are read from the article service, the search service never reads the article tables itself
+ */
+@Component
+@Slf4j
+public class ArticleReindexJob {
+
+    private final static String ARTICLE_INDEX = "app_info_article";
+
+    /**
+     * Index being rebuilt, the sync listener writes live updates to it as well
+     */
+    public final static String REINDEX_TARGET_KEY = "search:article:reindex:target";
+
+    private final static String VERSIONED_INDEX_PREFIX = ARTICLE_INDEX + "_v";
+
+    /**
+     * Settings and mappings of the new index
+     */
+    private final static String INDEX_DEFINITION = "es/app_info_article.json";
+
+    private final static int PAGE_SIZE = 500;
+
+    private final static int WORKERS = 4;
+
+    private final static int DEFAULT_DOCS_PER_SECOND = 2000;
+
+    /**
+     * Time for sync batches already running to see the target key
+     */
+    private final static long DUAL_WRITE_SETTLE_MILLIS = 5000;
+
+    @Autowired
+    private RestHighLevelClient restHighLevelClient;
+
+    @Autowired
+    private ArticleSearchBulkIndexer articleSearchBulkIndexer;
+
+    @Autowired
+    private IArticleClient articleClient;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * Job param: documents per second, default 2000
+     */
+    @XxlJob("reindexArticleJob")
+    public void reindex() throws Exception {
+        String param = XxlJobHelper.getJobParam();
+        int docsPerSecond = StringUtils.isBlank(param) ? DEFAULT_DOCS_PER_SECOND : Math.max(1, Integer.parseInt(param.trim()));
+        String newIndex = VERSIONED_INDEX_PREFIX + new SimpleDateFormat("yyyyMMddHHmmss").format(new Date());
+
+        String definition;
+        try (InputStream in = new ClassPathResource(INDEX_DEFINITION).getInputStream()) {
+            definition = StreamUtils.copyToString(in, StandardCharsets.UTF_8);
+        }
+        boolean created = false;
+        boolean swapped = false;
+        try {
+            //1. Create the new index, no refresh and no replicas while it is filled
+            restHighLevelClient.indices().create(new CreateIndexRequest(newIndex).source(definition, XContentType.JSON), RequestOptions.DEFAULT);
+            created = true;
+            GetSettingsResponse settings = restHighLevelClient.indices().getSettings(new GetSettingsRequest().indices(newIndex), RequestOptions.DEFAULT);
+            String refreshInterval = settings.getSetting(newIndex, "index.refresh_interval");
+            String replicas = settings.getSetting(newIndex, "index.number_of_replicas");
+            updateSettings(newIndex, "-1", "0");
+            XxlJobHelper.log("Reindex into {}, docsPerSecond={}", newIndex, docsPerSecond);
+
+            //2. Live updates from now on also go to the new index
+            stringRedisTemplate.opsForValue().set(REINDEX_TARGET_KEY, newIndex, 1, TimeUnit.DAYS);
+            Thread.sleep(DUAL_WRITE_SETTLE_MILLIS);
+
+            //3. Backfill published articles
+            long docs = backfill(newIndex, docsPerSecond);
+
+            //4. Articles taken down or deleted after their page was read were created anyway, remove them
+            long removed = purgeUnpublished(newIndex);
+
+            //5. Restore the settings and make everything searchable
+            updateSettings(newIndex, refreshInterval == null ? "1s" : refreshInterval, replicas == null ? "1" : replicas);
+            restHighLevelClient.indices().refresh(new RefreshRequest(newIndex), RequestOptions.DEFAULT);
+
+            //6. Point the alias at the new index in one request, then drop the indices it pointed at
+            Set<String> oldIndices = swapAlias(newIndex);
+            swapped = true;
+            for (String oldIndex : oldIndices) {
+                if (oldIndex.startsWith(VERSIONED_INDEX_PREFIX)) {
+                    //The alias already serves newIndex, a failed delete only leaves the old index behind
+                    try {
+                        restHighLevelClient.indices().delete(new DeleteIndexRequest(oldIndex), RequestOptions.DEFAULT);
+                        XxlJobHelper.log("Old index {} deleted", oldIndex);
+                    } catch (Exception e) {
+                        log.warn("Old article index delete failed, index={}", oldIndex, e);
+                    }
+                }
+            }
+            XxlJobHelper.log("Reindex finished, index={}, docs={}, removed={}", newIndex, docs, removed);
+            log.info("Article index rebuilt, index={}, docs={}, removed={}", newIndex, docs, removed);
+        } catch (Exception e) {
+            if (swapped) {
+                //The alias points at newIndex, it must stay
+                log.error("Article reindex failed after the alias swap, keeping {}", newIndex, e);
+                throw e;
+            }
+            log.error("Article reindex failed, dropping {}", newIndex, e);
+            XxlJobHelper.log("Reindex failed: {}", e.getMessage());
+            if (created) {
+                restHighLevelClient.indices().delete(new DeleteIndexRequest(newIndex), RequestOptions.DEFAULT);
+            }
+            throw e;
+        } finally {
+            stringRedisTemplate.delete(REINDEX_TARGET_KEY);
+        }
+    }
+
+    /**
+     * Stream published articles by id and bulk create the documents on WORKERS threads, throttled to docsPerSecond
+     * @param newIndex
+     * @param docsPerSecond
+     * @return documents sent
+     */
+    private long backfill(String newIndex, int docsPerSecond) throws Exception {
+        ExecutorService workers = Executors.newFixedThreadPool(WORKERS);
+        Semaphore pages = new Semaphore(WORKERS * 2);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        AtomicLong sent = new AtomicLong();
+        long start = System.currentTimeMillis();
+        long lastId = 0;
+        try {
+            while (failure.get() == null) {
+                //Keyset page of published articles
+                List<SearchArticleVo> documents = JSON.parseArray(JSON.toJSONString(
+                        checked(articleClient.loadSearchDocuments(lastId, PAGE_SIZE))), SearchArticleVo.class);
+                if (documents.isEmpty()) {
+                    break;
+                }
+                lastId = documents.get(documents.size() - 1).getId();
+
+                List<DocWriteRequest<?>> requests = new ArrayList<>(documents.size());
+                for (SearchArticleVo vo : documents) {
+                    //Create only, a live update already written to the new index wins
+                    requests.add(new IndexRequest(newIndex).id(String.valueOf(vo.getId()))
+                            .opType(DocWriteRequest.OpType.CREATE)
+                            .source(ArticleSearchDocumentUtils.toDocument(vo)));
+                }
+
+                pages.acquire();
+                workers.execute(() -> {
+                    try {
+                        articleSearchBulkIndexer.bulkBackfill(requests);
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        pages.release();
+                    }
+                });
+
+                //Throttle, stay behind docsPerSecond
+                long docs = sent.addAndGet(requests.size());
+                long elapsed = System.currentTimeMillis() - start;
+                long ahead = docs * 1000 / docsPerSecond - elapsed;
+                if (ahead > 0) {
+                    Thread.sleep(ahead);
+                    elapsed += ahead;
+                }
+                XxlJobHelper.log("Reindexed docs={}, lastId={}, rate={}/s", docs, lastId, docs * 1000 / Math.max(1, elapsed));
+            }
+            //Wait for the workers
+            pages.acquire(WORKERS * 2);
+        } finally {
+            workers.shutdown();
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return sent.get();
+    }
+
+    /**
+     * Delete every article that is not published any more from the new index
+     * @param newIndex
+     * @return delete requests sent
+     */
+    private long purgeUnpublished(String newIndex) throws Exception {
+        long removed = 0;
+        long lastId = 0;
+        while (true) {
+            List<Long> ids = JSON.parseArray(JSON.toJSONString(
+                    checked(articleClient.loadUnpublishedIds(lastId, PAGE_SIZE))), Long.class);
+            if (ids.isEmpty()) {
+                return removed;
+            }
+            lastId = ids.get(ids.size() - 1);
+            List<DocWriteRequest<?>> requests = new ArrayList<>(ids.size());
+            for (Long id : ids) {
+                requests.add(new DeleteRequest(newIndex, String.valueOf(id)));
+            }
+            articleSearchBulkIndexer.bulkBackfill(requests);
+            removed += ids.size();
+        }
+    }
+
+    /**
+     * Data of an article service response
+     * @param responseResult
+     * @return
+     */
+    private Object checked(ResponseResult responseResult) {
+        if (!responseResult.getCode().equals(200)) {
+            throw new IllegalStateException("Article service call failed: " + responseResult.getErrorMessage());
+        }
+        return responseResult.getData();
+    }
+
+    private void updateSettings(String index, String refreshInterval, String replicas) throws Exception {
+        restHighLevelClient.indices().putSettings(new UpdateSettingsRequest(index).settings(Settings.builder()
+                .put("index.refresh_interval", refreshInterval)
+                .put("index.number_of_replicas", replicas)), RequestOptions.DEFAULT);
+    }
+
+    /**
+     * Move the alias to newIndex atomically
+     * A first migration finds app_info_article as a concrete index, it is removed in the same request so the alias can take its name
+     * @param newIndex
+     * @return indices the alias pointed at before
+     */
+    private Set<String> swapAlias(String newIndex) throws Exception {
+        IndicesAliasesRequest request = new IndicesAliasesRequest();
+        request.addAliasAction(IndicesAliasesRequest.AliasActions.add().index(newIndex).alias(ARTICLE_INDEX));
+
+        Map<String, ?> aliases = restHighLevelClient.indices()
+                .getAlias(new GetAliasesRequest(ARTICLE_INDEX), RequestOptions.DEFAULT).getAliases();
+        Set<String> oldIndices = aliases.keySet();
+        if (!oldIndices.isEmpty()) {
+            for (String oldIndex : oldIndices) {
+                request.addAliasAction(IndicesAliasesRequest.AliasActions.remove().index(oldIndex).alias(ARTICLE_INDEX));
+            }
+        } else if (restHighLevelClient.indices().exists(new GetIndexRequest(ARTICLE_INDEX), RequestOptions.DEFAULT)) {
+            request.addAliasAction(IndicesAliasesRequest.AliasActions.removeIndex().index(ARTICLE_INDEX));
+        }
+        restHighLevelClient.indices().updateAliases(request, RequestOptions.DEFAULT);
+        XxlJobHelper.log("Alias {} -> {}, previous={}", ARTICLE_INDEX, newIndex, oldIndices);
+        return oldIndices;
+    }
+}
@@ -0,0 +1,120 @@
+
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.DigestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Input fingerprints of the static page stages of each article
+ * A stage whose input hash equals the stored one is skipped
+ */
+@Component
+@Slf4j
+public class ArticleRenderFingerprint {
+
+    public final static String STAGE_RENDER = "render";
+    public final static String STAGE_UPLOAD = "upload";
+    public final static String STAGE_STATIC_URL = "static_url";
+    public final static String STAGE_ES_SYNC = "es_sync";
+
+    /**
+     * Hash of the content alone, not a stage: tells a content edit from a template or fragment change
+     */
+    public final static String CONTENT = "content";
+
+    private final static String FINGERPRINT_KEY = "article:render:fp:";
+
+    /**
+     * Fingerprints of articles not rebuilt for this long expire, the next build then runs every stage
+     */
+    private final static long FINGERPRINT_TTL_SECONDS = TimeUnit.DAYS.toSeconds(30);
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    /**
+     * Stored fingerprints of an article, stage -> hash
+     * @param articleId
+     * @return
+     */
+    public Map<String, String> load(Long articleId) {
+        Map<Object, Object> entries = stringRedisTemplate.opsForHash().entries(FINGERPRINT_KEY + articleId);
+        Map<String, String> fingerprints = new HashMap<>();
+        entries.forEach((k, v) -> fingerprints.put((String) k, (String) v));
+        return fingerprints;
+    }
+
+    /**
+     * Save fingerprints once the current transaction commits, a rolled back stage is run again next time
+     * Each save renews the TTL
+     * @param articleId
+     * @param fingerprints
+     */
+    public void save(Long articleId, Map<String, String> fingerprints) {
+        String key = FINGERPRINT_KEY + articleId;
+        Runnable write = () -> stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringRedisConnection = (StringRedisConnection) connection;
+            stringRedisConnection.hMSet(key, fingerprints);
+            stringRedisConnection.expire(key, FINGERPRINT_TTL_SECONDS);
+            return null;
+        });
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    write.run();
+                }
+            });
+        } else {
+            write.run();
+        }
+    }
+
+    /**
+     * Count a stage as run or skipped
+     * @param stage
+     * @param skipped
+     */
+    public void count(String stage, boolean skipped) {
+        meterRegistry.counter("article.render.stage", "stage", stage, "result", skipped ? "skipped" : "run").increment();
+    }
+
+    public static String md5(String... parts) {
+        StringBuilder sb = new StringBuilder();
+        for (String part : parts) {
+            sb.append(part).append('\u0000');
+        }
+        return md5(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static String md5(byte[] bytes) {
+        return DigestUtils.md5DigestAsHex(bytes);
+    }
+
+    /**
+     * Lower-case hex, same format as md5DigestAsHex
+     * @param digest
+     * @return
+     */
+    public static String hex(byte[] digest) {
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,148 @@
+
+import com.baomidou.mybatisplus.core.toolkit.Wrappers;
+import com.xxl.job.core.context.XxlJobHelper;
+import com.xxl.job.core.handler.annotation.XxlJob;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Regenerate the static pages of all articles, e.g. after article.ftl changed
+ * Pages whose template and content are unchanged are skipped by the render fingerprints, so the job can be run again safely
+ * Only published articles are rendered, each page is rewritten in place without touching the feed or the search index
+ */
+@Component
+@Slf4j
+public class ArticleRerenderJob {
+
+    private final static String CHECKPOINT_KEY = "article:rerender:checkpoint";
+
+    private final static String PARAM_RESTART = "restart";
+
+    private final static int PAGE_SIZE = 200;
+
+    private final static int DEFAULT_CONCURRENCY = 8;
+
+    @Autowired
+    private ApArticleContentMapper apArticleContentMapper;
+
+    @Autowired
+    private ApArticleService apArticleService;
+
+    @Autowired
+    private ApArticleConfigMapper apArticleConfigMapper;
+
+    @Autowired
+    private ArticleFreemarkerService articleFreemarkerService;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * Job param: "restart" to start from the first article, and/or a number for concurrent uploads, e.g. "restart,16"
+     * Progress is checkpointed after every page, a stopped job resumes from the last finished page
+     */
+    @XxlJob("rerenderArticleJob")
+    public void rerender() throws InterruptedException {
+        //1. Parse job param
+        int concurrency = DEFAULT_CONCURRENCY;
+        String param = XxlJobHelper.getJobParam();
+        if (param != null) {
+            for (String token : param.split(",")) {
+                token = token.trim();
+                if (PARAM_RESTART.equalsIgnoreCase(token)) {
+                    stringRedisTemplate.delete(CHECKPOINT_KEY);
+                } else if (!token.isEmpty()) {
+                    concurrency = Integer.parseInt(token);
+                }
+            }
+        }
+
+        //2. Resume from the checkpoint
+        String checkpoint = stringRedisTemplate.opsForValue().get(CHECKPOINT_KEY);
+        long lastArticleId = checkpoint == null ? 0 : Long.parseLong(checkpoint);
+        long remaining = apArticleContentMapper.selectCount(Wrappers.<ApArticleContent>lambdaQuery()
+                .gt(ApArticleContent::getArticleId, lastArticleId));
+        XxlJobHelper.log("Rerender begin, fromArticleId={}, pages={}, concurrency={}", lastArticleId, remaining, concurrency);
+
+        //3. Render page by page, the semaphore bounds the uploads running at once
+        ForkJoinPool pool = new ForkJoinPool(concurrency);
+        Semaphore uploads = new Semaphore(concurrency);
+        AtomicInteger failed = new AtomicInteger();
+        int done = 0;
+        long start = System.currentTimeMillis();
+        try {
+            while (true) {
+                List<ApArticleContent> contents = apArticleContentMapper.selectList(Wrappers.<ApArticleContent>lambdaQuery()
+                        .gt(ApArticleContent::getArticleId, lastArticleId)
+                        .orderByAsc(ApArticleContent::getArticleId)
+                        .last("limit " + PAGE_SIZE));
+                if (contents.isEmpty()) {
+                    break;
+                }
+                List<Long> articleIds = contents.stream().map(ApArticleContent::getArticleId).collect(Collectors.toList());
+                Map<Long, ApArticle> articles = apArticleService.listByIds(articleIds).stream()
+                        .collect(Collectors.toMap(ApArticle::getId, Function.identity()));
+                //Taken down and deleted articles keep their page as it is
+                Set<Long> published = apArticleConfigMapper.selectList(Wrappers.<ApArticleConfig>lambdaQuery()
+                        .in(ApArticleConfig::getArticleId, articleIds)
+                        .eq(ApArticleConfig::getIsDown, false)
+                        .eq(ApArticleConfig::getIsDelete, false)).stream()
+                        .map(ApArticleConfig::getArticleId).collect(Collectors.toSet());
+
+                List<CompletableFuture<Void>> futures = new ArrayList<>(contents.size());
+                for (ApArticleContent apArticleContent : contents) {
+                    ApArticle apArticle = articles.get(apArticleContent.getArticleId());
+                    if (apArticle == null || !published.contains(apArticle.getId())) {
+                        continue;
+                    }
+                    uploads.acquire();
+                    futures.add(CompletableFuture.runAsync(() -> {
+                        try {
+                            if (!articleFreemarkerService.rerenderArticle(apArticle, apArticleContent.getContent())) {
+                                failed.incrementAndGet();
+                                XxlJobHelper.log("Rerender failed, articleId={}", apArticle.getId());
+                            }
+                        } catch (Exception e) {
+                            failed.incrementAndGet();
+                            log.error("Rerender failed, articleId={}", apArticle.getId(), e);
+                        } finally {
+                            uploads.release();
+                        }
+                    }, pool));
+                }
+                //The checkpoint only moves past pages that are completely rendered
+                CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+                lastArticleId = articleIds.get(articleIds.size() - 1);
+                stringRedisTemplate.opsForValue().set(CHECKPOINT_KEY, String.valueOf(lastArticleId));
+
+                //4. Report progress
+                done += contents.size();
+                double seconds = Math.max(1, System.currentTimeMillis() - start) / 1000.0;
+                double rate = done / seconds;
+                long eta = rate > 0 ? (long) (Math.max(0, remaining - done) / rate) : -1;
+                XxlJobHelper.log("Rerendered pages={}/{}, failed={}, lastArticleId={}, rate={}/s, eta={}s",
+                        done, remaining, failed.get(), lastArticleId, String.format("%.1f", rate), eta);
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        //5. Finished, the next run starts from the beginning
+        stringRedisTemplate.delete(CHECKPOINT_KEY);
+        log.info("Article pages rerendered, pages={}, failed={}, cost={}ms", done, failed.get(), System.currentTimeMillis() - start);
+        XxlJobHelper.log("Rerender end, pages={}, failed={}", done, failed.get());
+    }
+}
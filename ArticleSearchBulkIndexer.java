@@ -0,0 +1,187 @@
+
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.rest.RestStatus;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Sends write requests to ES as size bounded bulk requests
+ * At most MAX_IN_FLIGHT bulk requests run at once, items rejected with a retryable status are sent again
+ * A reindex backfill has its own MAX_BACKFILL_IN_FLIGHT permits, so it cannot starve the live sync
+ */
+@Component
+@Slf4j
+public class ArticleSearchBulkIndexer {
+
+    /**
+     * Upper bound of the source bytes of one bulk request
+     */
+    private final static long MAX_BULK_BYTES = 5 * 1024 * 1024;
+
+    private final static int MAX_IN_FLIGHT = 4;
+
+    private final static int MAX_BACKFILL_IN_FLIGHT = 2;
+
+    private final static int MAX_RETRIES = 3;
+
+    private final static long RETRY_BACKOFF_MILLIS = 200;
+
+    private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+
+    private final Semaphore backfillInFlight = new Semaphore(MAX_BACKFILL_IN_FLIGHT);
+
+    @Autowired
+    private RestHighLevelClient restHighLevelClient;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    /**
+     * Write all requests, retrying retryable failures
+     * A create that conflicts counts as written, the document already exists
+     * @param requests
+     * @return number of requests dropped with a non-retryable failure
+     * @throws IOException when retryable failures remain after MAX_RETRIES, the caller should redeliver
+     */
+    public int bulk(List<DocWriteRequest<?>> requests) throws IOException, InterruptedException {
+        return bulk(requests, inFlight);
+    }
+
+    /**
+     * Same as bulk, on the backfill permits
+     * @param requests
+     * @return number of requests dropped with a non-retryable failure
+     * @throws IOException when retryable failures remain after MAX_RETRIES
+     */
+    public int bulkBackfill(List<DocWriteRequest<?>> requests) throws IOException, InterruptedException {
+        return bulk(requests, backfillInFlight);
+    }
+
+    private int bulk(List<DocWriteRequest<?>> requests, Semaphore permits) throws IOException, InterruptedException {
+        int dropped = 0;
+        List<DocWriteRequest<?>> pending = requests;
+        for (int attempt = 0; !pending.isEmpty(); attempt++) {
+            if (attempt > MAX_RETRIES) {
+                throw new IOException("ES bulk still failing after " + MAX_RETRIES + " retries, requests=" + pending.size());
+            }
+            if (attempt > 0) {
+                meterRegistry.counter("search.article.bulk.items", "result", "retried").increment(pending.size());
+                Thread.sleep(RETRY_BACKOFF_MILLIS << (attempt - 1));
+            }
+
+            //1. Send the chunks, bounded by the in-flight semaphore
+            List<BulkRequest> chunks = chunk(pending);
+            List<CompletableFuture<BulkResponse>> futures = new ArrayList<>(chunks.size());
+            for (BulkRequest chunk : chunks) {
+                futures.add(send(chunk, permits));
+            }
+
+            //2. Collect what has to be sent again
+            List<DocWriteRequest<?>> retry = new ArrayList<>();
+            for (int i = 0; i < chunks.size(); i++) {
+                List<DocWriteRequest<?>> chunkRequests = chunks.get(i).requests();
+                BulkResponse response;
+                try {
+                    response = futures.get(i).join();
+                } catch (Exception e) {
+                    log.warn("ES bulk request failed, requests={}", chunkRequests.size(), e);
+                    retry.addAll(chunkRequests);
+                    continue;
+                }
+                int written = 0;
+                for (BulkItemResponse item : response.getItems()) {
+                    if (!item.isFailed()) {
+                        written++;
+                        continue;
+                    }
+                    DocWriteRequest<?> request = chunkRequests.get(item.getItemId());
+                    RestStatus status = item.getFailure().getStatus();
+                    if (status == RestStatus.CONFLICT && request.opType() == DocWriteRequest.OpType.CREATE) {
+                        written++;
+                    } else if (isRetryable(status)) {
+                        retry.add(request);
+                    } else {
+                        dropped++;
+                        log.error("ES bulk item dropped, index={}, id={}, failure={}", item.getIndex(), item.getId(), item.getFailureMessage());
+                    }
+                }
+                meterRegistry.counter("search.article.bulk.items", "result", "written").increment(written);
+            }
+            pending = retry;
+        }
+        meterRegistry.counter("search.article.bulk.items", "result", "dropped").increment(dropped);
+        return dropped;
+    }
+
+    /**
+     * Split requests into bulk requests of at most MAX_BULK_BYTES of source
+     * @param requests
+     * @return
+     */
+    private List<BulkRequest> chunk(List<DocWriteRequest<?>> requests) {
+        List<BulkRequest> chunks = new ArrayList<>();
+        BulkRequest current = new BulkRequest();
+        long bytes = 0;
+        for (DocWriteRequest<?> request : requests) {
+            long size = request instanceof IndexRequest ? ((IndexRequest) request).source().length() : 0;
+            if (current.numberOfActions() > 0 && bytes + size > MAX_BULK_BYTES) {
+                chunks.add(current);
+                current = new BulkRequest();
+                bytes = 0;
+            }
+            current.add(request);
+            bytes += size;
+        }
+        if (current.numberOfActions() > 0) {
+            chunks.add(current);
+        }
+        return chunks;
+    }
+
+    private CompletableFuture<BulkResponse> send(BulkRequest bulkRequest, Semaphore permits) throws InterruptedException {
+        CompletableFuture<BulkResponse> future = new CompletableFuture<>();
+        permits.acquire();
+        try {
+            restHighLevelClient.bulkAsync(bulkRequest, RequestOptions.DEFAULT, new ActionListener<BulkResponse>() {
+                @Override
+                public void onResponse(BulkResponse bulkResponse) {
+                    permits.release();
+                    future.complete(bulkResponse);
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    permits.release();
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (Exception e) {
+            //Thrown before the request was sent, the listener is never called
+            permits.release();
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private boolean isRetryable(RestStatus status) {
+        return status == RestStatus.TOO_MANY_REQUESTS
+                || status == RestStatus.SERVICE_UNAVAILABLE
+                || status == RestStatus.BAD_GATEWAY
+                || status == RestStatus.GATEWAY_TIMEOUT;
+    }
+}
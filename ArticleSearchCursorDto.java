@@ -0,0 +1,21 @@
+
+import lombok.Data;
+
+@Data
+public class ArticleSearchCursorDto {
+
+    /**
+     * Search keywords
+     */
+    private String searchWords;
+
+    /**
+     * Page size
+     */
+    private Integer pageSize;
+
+    /**
+     * Cursor returned with the previous page, empty for the first page
+     */
+    private String cursor;
+}
@@ -0,0 +1,73 @@
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONArray;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds the searchable form of an article, shared by the article sync producer and the search side indexer
+ */
+public class ArticleSearchDocumentUtils {
+
+    private ArticleSearchDocumentUtils() {
+    }
+
+    /**
+     * Plain text of the article content blocks, image blocks are dropped
+     * Content that is not block JSON is returned unchanged
+     * @param content [{"type":"text","value":"..."},{"type":"image","value":"http://..."}]
+     * @return
+     */
+    public static String plainText(String content) {
+        if (StringUtils.isBlank(content) || !content.trim().startsWith("[")) {
+            return content;
+        }
+        List<Map> maps;
+        try {
+            maps = JSONArray.parseArray(content, Map.class);
+        } catch (Exception e) {
+            return content;
+        }
+        StringBuilder stringBuilder = new StringBuilder(content.length() / 2);
+        for (Map map : maps) {
+            if ("text".equals(map.get("type")) && map.get("value") != null) {
+                if (stringBuilder.length() > 0) {
+                    stringBuilder.append('\n');
+                }
+                stringBuilder.append(map.get("value"));
+            }
+        }
+        return stringBuilder.toString();
+    }
+
+    /**
+     * Index document of the app_info_article index, only fields that are searched or shown in the result list
+     * @param vo
+     * @return
+     */
+    public static Map<String, Object> toDocument(SearchArticleVo vo) {
+        Map<String, Object> document = new HashMap<>();
+        document.put("id", vo.getId());
+        document.put("title", vo.getTitle());
+        document.put("content", plainText(vo.getContent()));
+        document.put("publishTime", vo.getPublishTime() == null ? null : vo.getPublishTime().getTime());
+        document.put("layout", vo.getLayout());
+        document.put("images", vo.getImages());
+        document.put("authorId", vo.getAuthorId());
+        document.put("authorName", vo.getAuthorName());
+        document.put("staticUrl", vo.getStaticUrl());
+        return document;
+    }
+
+    /**
+     * Index document from a sync message
+     * @param message SearchArticleVo JSON
+     * @return
+     */
+    public static Map<String, Object> toDocument(String message) {
+        return toDocument(JSON.parseObject(message, SearchArticleVo.class));
+    }
+}
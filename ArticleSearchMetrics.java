@@ -0,0 +1,168 @@
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.Data;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Phase timers of article searches and a ring buffer of the slowest ones
+ * Timers: search.article.phase{phase=es|parse|highlight|local|degraded|timeout|error,hits=0|1-10|11-50|51+}, with percentile histograms
+ */
+@Component
+public class ArticleSearchMetrics {
+
+    private final static int SLOW_LOG_SIZE = 256;
+
+    @Value("${search.slow-query.threshold-millis:500}")
+    private long slowThresholdMillis;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final AtomicReferenceArray<SlowQuery> slowQueries = new AtomicReferenceArray<>(SLOW_LOG_SIZE);
+
+    private final AtomicLong slowQueryCount = new AtomicLong();
+
+    /**
+     * phase:hits -> timer, built once instead of on every search
+     */
+    private final ConcurrentHashMap<String, Timer> timers = new ConcurrentHashMap<>();
+
+    /**
+     * Start timing one search
+     * @param searchWords
+     * @param minBehotTime epoch millis, null in cursor mode
+     * @param pageSize
+     * @return
+     */
+    public Trace start(String searchWords, Long minBehotTime, Integer pageSize) {
+        Trace trace = new Trace();
+        trace.startNanos = System.nanoTime();
+        trace.searchWords = searchWords;
+        trace.minBehotTime = minBehotTime;
+        trace.pageSize = pageSize;
+        return trace;
+    }
+
+    /**
+     * Record the phases of a finished search, and log it when it was slower than the threshold
+     * @param trace
+     * @param tier es, local, degraded (local index while ES failed), timeout or error
+     * @param hits result count, 0 when the search failed
+     */
+    public void finish(Trace trace, String tier, int hits) {
+        long totalNanos = System.nanoTime() - trace.startNanos;
+        String bucket = hitsBucket(hits);
+        if (!"es".equals(tier)) {
+            timer(tier, bucket).record(totalNanos, TimeUnit.NANOSECONDS);
+        } else {
+            timer("es", bucket).record(trace.esNanos, TimeUnit.NANOSECONDS);
+            timer("parse", bucket).record(trace.parseNanos, TimeUnit.NANOSECONDS);
+            timer("highlight", bucket).record(trace.highlightNanos, TimeUnit.NANOSECONDS);
+        }
+
+        if (TimeUnit.NANOSECONDS.toMillis(totalNanos) >= slowThresholdMillis) {
+            SlowQuery slowQuery = new SlowQuery();
+            slowQuery.setTimestamp(System.currentTimeMillis());
+            slowQuery.setSearchWords(trace.searchWords);
+            slowQuery.setMinBehotTime(trace.minBehotTime);
+            slowQuery.setPageSize(trace.pageSize);
+            slowQuery.setTier(tier);
+            slowQuery.setHits(hits);
+            slowQuery.setTotalMillis(TimeUnit.NANOSECONDS.toMillis(totalNanos));
+            slowQuery.setEsMillis(TimeUnit.NANOSECONDS.toMillis(trace.esNanos));
+            slowQuery.setParseMillis(TimeUnit.NANOSECONDS.toMillis(trace.parseNanos));
+            slowQuery.setHighlightMillis(TimeUnit.NANOSECONDS.toMillis(trace.highlightNanos));
+            long sequence = slowQueryCount.getAndIncrement();
+            slowQueries.set((int) (sequence % SLOW_LOG_SIZE), slowQuery);
+        }
+    }
+
+    /**
+     * Slow queries still in the ring buffer, newest first
+     * @return
+     */
+    public List<SlowQuery> slowQueries() {
+        long count = slowQueryCount.get();
+        int size = (int) Math.min(count, SLOW_LOG_SIZE);
+        List<SlowQuery> list = new ArrayList<>(size);
+        for (long i = count - 1; i >= count - size; i--) {
+            SlowQuery slowQuery = slowQueries.get((int) (i % SLOW_LOG_SIZE));
+            if (slowQuery != null) {
+                list.add(slowQuery);
+            }
+        }
+        return list;
+    }
+
+    private Timer timer(String phase, String hits) {
+        return timers.computeIfAbsent(phase + ":" + hits, key -> Timer.builder("search.article.phase")
+                .tag("phase", phase)
+                .tag("hits", hits)
+                .publishPercentileHistogram()
+                .register(meterRegistry));
+    }
+
+    private String hitsBucket(int hits) {
+        if (hits == 0) {
+            return "0";
+        }
+        if (hits <= 10) {
+            return "1-10";
+        }
+        return hits <= 50 ? "11-50" : "51+";
+    }
+
+    /**
+     * Phase nanos of one search in progress
+     */
+    public static class Trace {
+
+        private long startNanos;
+
+        private String searchWords;
+
+        private Long minBehotTime;
+
+        private Integer pageSize;
+
+        long esNanos;
+
+        long parseNanos;
+
+        long highlightNanos;
+    }
+
+    @Data
+    public static class SlowQuery {
+
+        private Long timestamp;
+
+        private String searchWords;
+
+        private Long minBehotTime;
+
+        private Integer pageSize;
+
+        private String tier;
+
+        private Integer hits;
+
+        private Long totalMillis;
+
+        private Long esMillis;
+
+        private Long parseMillis;
+
+        private Long highlightMillis;
+    }
+}
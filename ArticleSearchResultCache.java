@@ -0,0 +1,190 @@
+
+import com.alibaba.fastjson.JSON;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.util.DigestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Two tier cache of article search results: a short lived local tier in front of Redis
+ * Concurrent misses of the same key share one load
+ * The key carries the index generation, moved on at most once per GENERATION_WINDOW_MILLIS after the ES sync listener indexed articles
+ */
+@Component
+@Slf4j
+public class ArticleSearchResultCache {
+
+    private final static String RESULT_KEY = "search:article:result:";
+
+    /**
+     * Search results cached under an older generation are stale
+     */
+    private final static String SEARCH_GENERATION_KEY = "search:article:generation";
+
+    /**
+     * Set by the sync listener when articles were indexed since the last generation
+     */
+    private final static String SEARCH_CHANGED_KEY = "search:article:changed";
+
+    /**
+     * Indexed batches within this window share one invalidation
+     */
+    private final static long GENERATION_WINDOW_MILLIS = 10 * 1000;
+
+    /**
+     * First pages carry "now" as their cursor, it is rounded up to the end of its bucket
+     */
+    private final static long CURSOR_BUCKET_MILLIS = 10 * 1000;
+
+    private final static long LOCAL_TTL_MILLIS = 2000;
+
+    private final static long REDIS_TTL_SECONDS = 60;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final Cache<String, List<Map>> local = Caffeine.newBuilder()
+            .expireAfterWrite(LOCAL_TTL_MILLIS, TimeUnit.MILLISECONDS)
+            .maximumSize(10000)
+            .build();
+
+    private final ConcurrentHashMap<String, CompletableFuture<List<Map>>> loading = new ConcurrentHashMap<>();
+
+    private volatile String generation = "0";
+
+    /**
+     * Record that articles were indexed, cached results are invalidated with the next generation
+     */
+    public void markChanged() {
+        stringRedisTemplate.opsForValue().set(SEARCH_CHANGED_KEY, "1");
+    }
+
+    /**
+     * Start a new generation if articles were indexed in the last window
+     * Deleting the flag is atomic, so one node moves the generation on however many run this
+     */
+    @Scheduled(fixedDelay = GENERATION_WINDOW_MILLIS)
+    public void advanceGeneration() {
+        try {
+            if (Boolean.TRUE.equals(stringRedisTemplate.delete(SEARCH_CHANGED_KEY))) {
+                stringRedisTemplate.opsForValue().increment(SEARCH_GENERATION_KEY);
+            }
+        } catch (Exception e) {
+            log.warn("Search generation advance failed", e);
+        }
+    }
+
+    /**
+     * Follow the index generation, a new generation makes all cached results unreachable
+     */
+    @Scheduled(fixedDelay = 1000)
+    public void refreshGeneration() {
+        try {
+            String current = stringRedisTemplate.opsForValue().get(SEARCH_GENERATION_KEY);
+            generation = current == null ? "0" : current;
+        } catch (Exception e) {
+            log.warn("Search generation refresh failed", e);
+        }
+    }
+
+    /**
+     * Round a first page cursor so all first pages of a bucket share one key and one result
+     * Called before the key is built and the search runs, both use the rounded value
+     * Older cursors point at an article the client has seen and are kept exact, so no article is skipped
+     * @param dto
+     */
+    public void roundCursor(UserSearchDto dto) {
+        long minBehotTime = dto.getMinBehotTime().getTime();
+        if (minBehotTime >= System.currentTimeMillis() - CURSOR_BUCKET_MILLIS) {
+            dto.setMinBehotTime(new Date((minBehotTime / CURSOR_BUCKET_MILLIS + 1) * CURSOR_BUCKET_MILLIS));
+        }
+    }
+
+    /**
+     * Cached result of a search, loaded once per key when missing
+     * @param dto
+     * @param loader runs the search, called by one of the concurrent requests of a key
+     * @return
+     */
+    public CompletableFuture<List<Map>> get(UserSearchDto dto, Supplier<CompletableFuture<List<Map>>> loader) {
+        String key = key(dto);
+
+        //1. Local tier
+        List<Map> result = local.getIfPresent(key);
+        if (result != null) {
+            meterRegistry.counter("search.article.result.cache", "tier", "local").increment();
+            return CompletableFuture.completedFuture(result);
+        }
+
+        //2. Redis tier and load, one per key
+        CompletableFuture<List<Map>> future = new CompletableFuture<>();
+        CompletableFuture<List<Map>> running = loading.putIfAbsent(key, future);
+        if (running != null) {
+            meterRegistry.counter("search.article.result.cache", "tier", "shared").increment();
+            return running;
+        }
+        try {
+            String json = stringRedisTemplate.opsForValue().get(RESULT_KEY + key);
+            if (json != null) {
+                meterRegistry.counter("search.article.result.cache", "tier", "redis").increment();
+                complete(key, future, JSON.parseArray(json, Map.class), null, false);
+                return future;
+            }
+            meterRegistry.counter("search.article.result.cache", "tier", "miss").increment();
+            loader.get().whenComplete((list, e) -> complete(key, future, list, e, true));
+        } catch (Exception e) {
+            complete(key, future, null, e, false);
+        }
+        return future;
+    }
+
+    private void complete(String key, CompletableFuture<List<Map>> future, List<Map> result, Throwable e, boolean store) {
+        try {
+            if (e == null) {
+                local.put(key, result);
+                if (store) {
+                    stringRedisTemplate.opsForValue().set(RESULT_KEY + key, JSON.toJSONString(result), REDIS_TTL_SECONDS, TimeUnit.SECONDS);
+                }
+            }
+        } catch (Exception ex) {
+            log.warn("Search result cache write failed, key={}", key, ex);
+        } finally {
+            loading.remove(key, future);
+            if (e == null) {
+                future.complete(result);
+            } else {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * generation:hash of normalized words:minBehotTime:pageSize
+     * minBehotTime is the one roundCursor left, the search used the same value
+     * @param dto
+     * @return
+     */
+    private String key(UserSearchDto dto) {
+        String words = dto.getSearchWords().trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+        return generation + ":" + DigestUtils.md5DigestAsHex(words.getBytes(StandardCharsets.UTF_8))
+                + ":" + dto.getMinBehotTime().getTime() + ":" + dto.getPageSize();
+    }
+}
@@ -1,23 +1,43 @@
 import com.alibaba.fastjson.JSON;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
+import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.text.Text;
 import org.elasticsearch.index.query.*;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
 import org.elasticsearch.search.fetch.subphase.highlight.HighlightBuilder;
+import org.elasticsearch.search.fetch.subphase.highlight.HighlightField;
 import org.elasticsearch.search.sort.SortOrder;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.IOException;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Service
 @Slf4j
@@ -27,7 +47,10 @@ public class ArticleSearchServiceImpl implements ArticleSearchService {
     private RestHighLevelClient restHighLevelClient;
 
     @Autowired
-    private ApUserSearchService apUserSearchService;
+    private SearchHistoryBuffer searchHistoryBuffer;
+
+    @Autowired
+    private ArticleSearchResultCache articleSearchResultCache;
 
     /**
      * ES article pagination search
@@ -45,11 +68,111 @@ public class ArticleSearchServiceImpl implements ArticleSearchService {
 
         ApUser user = AppThreadLocalUtil.getUser();
 
-        //Asynchronous call, save search records
+        //Buffered, save search records in bulk
         if(user != null && dto.getFromIndex() == 0){
-            apUserSearchService.insert(dto.getSearchWords(), user.getId());
+            searchHistoryBuffer.add(dto.getSearchWords(), user.getId());
+        }
+
+        //Identical searches are answered from the result cache, first pages of one bucket share a result
+        articleSearchResultCache.roundCursor(dto);
+        List<Map> list;
+        try {
+            list = articleSearchResultCache.get(dto, () -> {
+                try {
+                    return CompletableFuture.completedFuture(searchArticles(dto));
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+        return ResponseResult.okResult(list);
+    }
+
+    @Autowired
+    private LocalArticleIndex localArticleIndex;
+
+    @Autowired
+    private ArticleSearchMetrics articleSearchMetrics;
+
+    /**
+     * Query one page of articles, from the local index when its window covers the page, otherwise ES
+     * @param dto
+     * @return
+     */
+    private List<Map> searchArticles(UserSearchDto dto) throws IOException {
+        ArticleSearchMetrics.Trace trace = articleSearchMetrics.start(dto.getSearchWords(), dto.getMinBehotTime().getTime(), dto.getPageSize());
+        List<Map> local;
+        try {
+            local = localArticleIndex.search(dto, false);
+        } catch (IOException | RuntimeException e) {
+            articleSearchMetrics.finish(trace, failureTier(e), 0);
+            throw e;
+        }
+        if(local != null){
+            articleSearchMetrics.finish(trace, "local", local.size());
+            return local;
         }
+        try {
+            long start = System.nanoTime();
+            SearchResponse searchResponse = restHighLevelClient.search(buildSearchRequest(dto), RequestOptions.DEFAULT);
+            trace.esNanos = System.nanoTime() - start;
+            List<Map> list = parseHits(searchResponse, trace);
+            articleSearchMetrics.finish(trace, "es", list.size());
+            return list;
+        } catch (IOException e) {
+            return degradedSearch(dto, e, trace);
+        } catch (RuntimeException e) {
+            articleSearchMetrics.finish(trace, "error", 0);
+            throw e;
+        }
+    }
+
+    /**
+     * Answer from the local index while ES is failing, the page may miss older articles
+     * @param dto
+     * @param e the ES failure, rethrown when there is no local index
+     * @param trace finished as degraded, or as the failure when there is no answer
+     * @return
+     */
+    private List<Map> degradedSearch(UserSearchDto dto, IOException e, ArticleSearchMetrics.Trace trace) throws IOException {
+        List<Map> degraded = null;
+        try {
+            degraded = localArticleIndex.search(dto, true);
+        } finally {
+            articleSearchMetrics.finish(trace, degraded != null ? "degraded" : failureTier(e), degraded != null ? degraded.size() : 0);
+        }
+        if(degraded == null){
+            throw e;
+        }
+        log.warn("ES search failed, answered from the local index, words={}", dto.getSearchWords(), e);
+        return degraded;
+    }
 
+    /**
+     * Metrics tier of a failed search
+     * @param e
+     * @return timeout when a timeout caused it, otherwise error
+     */
+    private String failureTier(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if(cause instanceof TimeoutException || cause instanceof SocketTimeoutException){
+                return "timeout";
+            }
+        }
+        return "error";
+    }
+
+    /**
+     * Search request of one page of articles
+     * @param dto
+     * @return
+     */
+    private SearchRequest buildSearchRequest(UserSearchDto dto) {
 
         //2.Set query conditions
         SearchRequest searchRequest = new SearchRequest("app_info_article");
@@ -83,8 +206,16 @@ public class ArticleSearchServiceImpl implements ArticleSearchService {
 
         searchSourceBuilder.query(boolQueryBuilder);
         searchRequest.source(searchSourceBuilder);
-        SearchResponse searchResponse = restHighLevelClient.search(searchRequest, RequestOptions.DEFAULT);
+        return searchRequest;
+    }
 
+    /**
+     * Result list with highlighted titles
+     * @param searchResponse
+     * @param trace receives the parse and highlight time
+     * @return
+     */
+    private List<Map> parseHits(SearchResponse searchResponse, ArticleSearchMetrics.Trace trace) {
 
         //3. Package and return results
 
@@ -92,8 +223,11 @@ public class ArticleSearchServiceImpl implements ArticleSearchService {
 
         SearchHit[] hits = searchResponse.getHits().getHits();
         for (SearchHit hit : hits) {
+            long parseStart = System.nanoTime();
             String json = hit.getSourceAsString();
             Map map = JSON.parseObject(json, Map.class);
+            long highlightStart = System.nanoTime();
+            trace.parseNanos += highlightStart - parseStart;
             //Handle highlight
             if(hit.getHighlightFields() != null && hit.getHighlightFields().size() > 0){
                 Text[] titles = hit.getHighlightFields().get("title").getFragments();
@@ -104,10 +238,295 @@ public class ArticleSearchServiceImpl implements ArticleSearchService {
                 //Original title
                 map.put("h_title",map.get("title"));
             }
+            trace.highlightNanos += System.nanoTime() - highlightStart;
             list.add(map);
         }
 
-        return ResponseResult.okResult(list);
+        return list;
+
+    }
+
+    @Value("${search.async.timeout-millis:2000}")
+    private long asyncTimeoutMillis;
+
+    @Value("${search.async.max-concurrency:200}")
+    private int asyncMaxConcurrency;
+
+    @Value("${search.async.result-threads:0}")
+    private int resultThreads;
+
+    @Value("${search.async.result-queue:1000}")
+    private int resultQueue;
+
+    /**
+     * ES searches in flight started by searchAsync
+     */
+    private Semaphore asyncPermits;
+
+    private ScheduledThreadPoolExecutor timeoutScheduler;
+
+    /**
+     * Parses ES responses and writes the result cache, the ES client's IO reactor threads only hand the response over
+     */
+    private ExecutorService resultExecutor;
+
+    @PostConstruct
+    public void initAsync() {
+        asyncPermits = new Semaphore(asyncMaxConcurrency);
+        int threads = resultThreads > 0 ? resultThreads : Runtime.getRuntime().availableProcessors();
+        AtomicInteger count = new AtomicInteger();
+        //Bounded queue, a full one rejects and the search fails fast instead of piling up
+        resultExecutor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(resultQueue), r -> {
+            Thread thread = new Thread(r, "search-result-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        timeoutScheduler = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "search-timeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timeoutScheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    @PreDestroy
+    public void shutdownAsync() {
+        timeoutScheduler.shutdownNow();
+        resultExecutor.shutdown();
+    }
+
+    /**
+     * ES article pagination search that does not hold the request thread during the ES round trip
+     * Fails fast when asyncMaxConcurrency searches are running, and after asyncTimeoutMillis
+     *
+     * @param dto
+     * @return
+     */
+    @Override
+    public CompletableFuture<ResponseResult> searchAsync(UserSearchDto dto) {
+
+        //1. Check parameters
+        if(dto == null || StringUtils.isBlank(dto.getSearchWords())){
+            return CompletableFuture.completedFuture(ResponseResult.errorResult(AppHttpCodeEnum.PARAM_INVALID));
+        }
 
+        ApUser user = AppThreadLocalUtil.getUser();
+
+        //Buffered, save search records in bulk
+        if(user != null && dto.getFromIndex() == 0){
+            searchHistoryBuffer.add(dto.getSearchWords(), user.getId());
+        }
+
+        //2. Search through the result cache, the ES call runs on the client's IO threads, the result on resultExecutor
+        articleSearchResultCache.roundCursor(dto);
+        return articleSearchResultCache.get(dto, () -> searchLocalOrAsync(dto))
+                .thenApply(list -> ResponseResult.okResult(list))
+                .exceptionally(e -> {
+                    Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                    if(cause instanceof TimeoutException || cause instanceof RejectedExecutionException){
+                        log.warn("Async search rejected, words={}, reason={}", dto.getSearchWords(), cause.getMessage());
+                    }else {
+                        log.error("Async search failed, words={}", dto.getSearchWords(), cause);
+                    }
+                    return ResponseResult.errorResult(AppHttpCodeEnum.SERVER_ERROR, "Search is busy, please try again");
+                });
+    }
+
+    /**
+     * Local index when its window covers the page, otherwise ES, falling back to the local index if ES fails
+     * @param dto
+     * @return
+     */
+    private CompletableFuture<List<Map>> searchLocalOrAsync(UserSearchDto dto) {
+        ArticleSearchMetrics.Trace trace = articleSearchMetrics.start(dto.getSearchWords(), dto.getMinBehotTime().getTime(), dto.getPageSize());
+        try {
+            List<Map> local = localArticleIndex.search(dto, false);
+            if(local != null){
+                articleSearchMetrics.finish(trace, "local", local.size());
+                return CompletableFuture.completedFuture(local);
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("Local article search failed, words={}", dto.getSearchWords(), e);
+        }
+        CompletableFuture<List<Map>> result = new CompletableFuture<>();
+        searchArticlesAsync(dto, trace).whenComplete((searchResponse, e) -> {
+            //Off the IO thread: parsing, the degraded local search and the cache write all run on resultExecutor
+            try {
+                resultExecutor.execute(() -> {
+                    if(e == null){
+                        try {
+                            List<Map> list = parseHits(searchResponse, trace);
+                            articleSearchMetrics.finish(trace, "es", list.size());
+                            result.complete(list);
+                        } catch (Exception ex) {
+                            articleSearchMetrics.finish(trace, "error", 0);
+                            result.completeExceptionally(ex);
+                        }
+                        return;
+                    }
+                    try {
+                        result.complete(degradedSearch(dto, e instanceof IOException ? (IOException) e : new IOException(e), trace));
+                    } catch (Exception ex) {
+                        result.completeExceptionally(e);
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                articleSearchMetrics.finish(trace, "error", 0);
+                result.completeExceptionally(ex);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Non-blocking ES search of one page of articles
+     * @param dto
+     * @param trace
+     * @return the raw response, completed on the ES client's IO thread
+     */
+    private CompletableFuture<SearchResponse> searchArticlesAsync(UserSearchDto dto, ArticleSearchMetrics.Trace trace) {
+        CompletableFuture<SearchResponse> future = new CompletableFuture<>();
+        if(!asyncPermits.tryAcquire()){
+            future.completeExceptionally(new RejectedExecutionException("Search concurrency limit " + asyncMaxConcurrency + " reached"));
+            return future;
+        }
+
+        //The permit is held until ES answers, a timed out search still counts until then
+        long start = System.nanoTime();
+        try {
+            restHighLevelClient.searchAsync(buildSearchRequest(dto), RequestOptions.DEFAULT, new ActionListener<SearchResponse>() {
+                @Override
+                public void onResponse(SearchResponse searchResponse) {
+                    asyncPermits.release();
+                    trace.esNanos = System.nanoTime() - start;
+                    future.complete(searchResponse);
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    asyncPermits.release();
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (Exception e) {
+            //Thrown before the request was sent, the listener is never called
+            asyncPermits.release();
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        ScheduledFuture<?> timeout = timeoutScheduler.schedule(
+                () -> future.completeExceptionally(new TimeoutException("Search timed out after " + asyncTimeoutMillis + "ms")),
+                asyncTimeoutMillis, TimeUnit.MILLISECONDS);
+        future.whenComplete((list, e) -> timeout.cancel(false));
+        return future;
+    }
+
+    /**
+     * Fields the search result list shows, content is never returned
+     */
+    private final static String[] HIT_FIELDS = {"id", "title", "publishTime", "layout", "images", "authorId", "authorName", "staticUrl"};
+
+    private final static int MAX_PAGE_SIZE = 50;
+
+    /**
+     * ES article search, paged with search_after over (publishTime, id)
+     *
+     * @param dto
+     * @return list and the cursor of the next page, no cursor on the last page
+     */
+    @Override
+    public ResponseResult searchByCursor(ArticleSearchCursorDto dto) throws IOException {
+
+        //1. Check parameters
+        if(dto == null || StringUtils.isBlank(dto.getSearchWords())){
+            return ResponseResult.errorResult(AppHttpCodeEnum.PARAM_INVALID);
+        }
+        Integer size = dto.getPageSize();
+        if(size == null || size <= 0){
+            size = 10;
+        }
+        size = Math.min(size, MAX_PAGE_SIZE);
+
+        //Cursor  publishTime_id
+        Object[] searchAfter = null;
+        if(StringUtils.isNotBlank(dto.getCursor())){
+            String[] parts = dto.getCursor().split("_");
+            if(parts.length != 2 || !StringUtils.isNumeric(parts[0]) || !StringUtils.isNumeric(parts[1])){
+                return ResponseResult.errorResult(AppHttpCodeEnum.PARAM_INVALID, "Invalid cursor");
+            }
+            try {
+                searchAfter = new Object[]{Long.parseLong(parts[0]), Long.parseLong(parts[1])};
+            } catch (NumberFormatException e) {
+                //Digits beyond the range of a long
+                return ResponseResult.errorResult(AppHttpCodeEnum.PARAM_INVALID, "Invalid cursor");
+            }
+        }
+
+        ApUser user = AppThreadLocalUtil.getUser();
+
+        //Buffered, save search records in bulk
+        if(user != null && searchAfter == null){
+            searchHistoryBuffer.add(dto.getSearchWords(), user.getId());
+        }
+
+        //2.Set query conditions
+        SearchRequest searchRequest = new SearchRequest("app_info_article");
+        SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
+        searchSourceBuilder.query(QueryBuilders.queryStringQuery(dto.getSearchWords()).field("title").field("content").defaultOperator(Operator.OR));
+        searchSourceBuilder.size(size);
+        searchSourceBuilder.fetchSource(HIT_FIELDS, null);
+        searchSourceBuilder.trackTotalHits(false);
+
+        //Newest first, id breaks ties so the cursor is unique
+        searchSourceBuilder.sort("publishTime", SortOrder.DESC);
+        searchSourceBuilder.sort("id", SortOrder.DESC);
+        if(searchAfter != null){
+            searchSourceBuilder.searchAfter(searchAfter);
+        }
+
+        //Set highlight  title
+        HighlightBuilder highlightBuilder = new HighlightBuilder();
+        highlightBuilder.field("title");
+        highlightBuilder.preTags("<font style='color: red; font-size: inherit;'>");
+        highlightBuilder.postTags("</font>");
+        searchSourceBuilder.highlighter(highlightBuilder);
+
+        searchRequest.source(searchSourceBuilder);
+        ArticleSearchMetrics.Trace trace = articleSearchMetrics.start(dto.getSearchWords(), null, size);
+        SearchHit[] hits;
+        List<SearchArticleHitVo> list;
+        try {
+            long start = System.nanoTime();
+            SearchResponse searchResponse = restHighLevelClient.search(searchRequest, RequestOptions.DEFAULT);
+            trace.esNanos = System.nanoTime() - start;
+
+            //3. Package and return results, _source is parsed straight into the hit type
+            hits = searchResponse.getHits().getHits();
+            list = new ArrayList<>(hits.length);
+            for (SearchHit hit : hits) {
+                long parseStart = System.nanoTime();
+                SearchArticleHitVo vo = JSON.parseObject(BytesReference.toBytes(hit.getSourceRef()), SearchArticleHitVo.class);
+                long highlightStart = System.nanoTime();
+                trace.parseNanos += highlightStart - parseStart;
+                HighlightField title = hit.getHighlightFields().get("title");
+                vo.setHTitle(title != null ? StringUtils.join(title.getFragments()) : vo.getTitle());
+                trace.highlightNanos += System.nanoTime() - highlightStart;
+                list.add(vo);
+            }
+        } catch (IOException | RuntimeException e) {
+            articleSearchMetrics.finish(trace, failureTier(e), 0);
+            throw e;
+        }
+        articleSearchMetrics.finish(trace, "es", list.size());
+
+        Map<String,Object> map = new HashMap<>();
+        map.put("list", list);
+        if(hits.length == size){
+            Object[] sortValues = hits[hits.length - 1].getSortValues();
+            map.put("cursor", sortValues[0] + "_" + sortValues[1]);
+        }
+        return ResponseResult.okResult(map);
     }
 }
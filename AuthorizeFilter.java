@@ -1,3 +1,6 @@
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
 import io.jsonwebtoken.Claims;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang.StringUtils;
@@ -11,9 +14,56 @@ import org.springframework.stereotype.Component;
 import org.springframework.web.server.ServerWebExchange;
 import reactor.core.publisher.Mono;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
 @Component
 @Slf4j
 public class AuthorizeFilter implements Ordered, GlobalFilter {
+
+    private final static long MAX_CACHED_TOKENS = 100000;
+
+    /**
+     * Upper bound of how long a verified token is trusted without verifying it again
+     */
+    private final static long MAX_CACHE_NANOS = TimeUnit.MINUTES.toNanos(30);
+
+    private final static ThreadLocal<MessageDigest> SHA_256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    /**
+     * SHA-256 of the token -> verified claims, an entry expires no later than the token's exp
+     * Only valid tokens are cached, a rejected token is verified again every time
+     */
+    private final Cache<ByteBuffer, Claims> verifiedTokens = Caffeine.newBuilder()
+            .maximumSize(MAX_CACHED_TOKENS)
+            .expireAfter(new Expiry<ByteBuffer, Claims>() {
+                @Override
+                public long expireAfterCreate(ByteBuffer key, Claims claims, long currentTime) {
+                    long untilExp = TimeUnit.MILLISECONDS.toNanos(claims.getExpiration().getTime() - System.currentTimeMillis());
+                    return Math.max(0, Math.min(untilExp, MAX_CACHE_NANOS));
+                }
+
+                @Override
+                public long expireAfterUpdate(ByteBuffer key, Claims claims, long currentTime, long currentDuration) {
+                    return currentDuration;
+                }
+
+                @Override
+                public long expireAfterRead(ByteBuffer key, Claims claims, long currentTime, long currentDuration) {
+                    return currentDuration;
+                }
+            })
+            .build();
+
     @Override
     public Mono<Void> filter(ServerWebExchange exchange, GatewayFilterChain chain) {
         //1. obtain request and response object
@@ -36,7 +86,12 @@ public class AuthorizeFilter implements Ordered, GlobalFilter {
             return response.setComplete();
         }
 
-        //5. judge if token is valid
+        //5. judge if token is valid, a token verified before is trusted until its exp
+        ByteBuffer tokenHash = ByteBuffer.wrap(SHA_256.get().digest(token.getBytes(StandardCharsets.UTF_8)));
+        Claims cached = verifiedTokens.getIfPresent(tokenHash);
+        if(cached != null && cached.getExpiration().getTime() > System.currentTimeMillis()){
+            return chain.filter(exchange);
+        }
         try {
             Claims claimsBody = AppJwtUtil.getClaimsBody(token);
             //if out of date
@@ -45,6 +100,9 @@ public class AuthorizeFilter implements Ordered, GlobalFilter {
                 response.setStatusCode(HttpStatus.UNAUTHORIZED);
                 return response.setComplete();
             }
+            if(claimsBody.getExpiration() != null){
+                verifiedTokens.put(tokenHash, claimsBody);
+            }
         }catch (Exception e){
             e.printStackTrace();
             response.setStatusCode(HttpStatus.UNAUTHORIZED);
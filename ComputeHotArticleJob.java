@@ -0,0 +1,20 @@
+
+import com.xxl.job.core.handler.annotation.XxlJob;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+@Component
+@Slf4j
+public class ComputeHotArticleJob {
+
+    @Autowired
+    private HotArticleService hotArticleService;
+
+    @XxlJob("computeHotArticleJob")
+    public void handle(){
+        log.info("Hot article score computation begin");
+        hotArticleService.computeHotArticle();
+        log.info("Hot article score computation end");
+    }
+}
@@ -0,0 +1,88 @@
+
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Data;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Primary/replica routing, enabled when datasource.routing.replicas is configured
+ * datasource:
+ *   routing:
+ *     max-lag-seconds: 5
+ *     replicas:
+ *       - url: jdbc:mysql://replica1:3306/leadnews_article
+ *         username: root
+ *         password: root
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "datasource.routing", name = "replicas[0].url")
+@EnableConfigurationProperties(DataSourceRoutingConfig.RoutingProperties.class)
+public class DataSourceRoutingConfig {
+
+    @Bean
+    public ReplicaHealthMonitor replicaHealthMonitor(DataSourceProperties dataSourceProperties, RoutingProperties routingProperties,
+                                                     MeterRegistry meterRegistry) {
+        Map<String, DataSource> replicas = new LinkedHashMap<>();
+        for (int i = 0; i < routingProperties.getReplicas().size(); i++) {
+            ReplicaProperties replica = routingProperties.getReplicas().get(i);
+            HikariDataSource dataSource = dataSourceProperties.initializeDataSourceBuilder().type(HikariDataSource.class)
+                    .url(replica.getUrl()).username(replica.getUsername()).password(replica.getPassword()).build();
+            dataSource.setPoolName("replica-" + i);
+            dataSource.setReadOnly(true);
+            replicas.put("replica-" + i, dataSource);
+        }
+        return new ReplicaHealthMonitor(replicas, routingProperties.getMaxLagSeconds(), meterRegistry);
+    }
+
+    @Bean
+    @Primary
+    public DataSource dataSource(DataSourceProperties dataSourceProperties, ReplicaHealthMonitor replicaHealthMonitor,
+                                 MeterRegistry meterRegistry) {
+        HikariDataSource primary = dataSourceProperties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+        primary.setPoolName(RoutingDataSource.PRIMARY);
+
+        Map<Object, Object> targets = new HashMap<>();
+        targets.put(RoutingDataSource.PRIMARY, primary);
+        //Same replica pools as the health monitor
+        targets.putAll(replicaHealthMonitor.dataSources());
+
+        RoutingDataSource routingDataSource = new RoutingDataSource(replicaHealthMonitor, meterRegistry);
+        routingDataSource.setTargetDataSources(targets);
+        routingDataSource.setDefaultTargetDataSource(primary);
+        routingDataSource.afterPropertiesSet();
+        return new LazyConnectionDataSourceProxy(routingDataSource);
+    }
+
+    @Data
+    @ConfigurationProperties(prefix = "datasource.routing")
+    public static class RoutingProperties {
+
+        /**
+         * Replicas further behind than this are skipped
+         */
+        private long maxLagSeconds = 5;
+
+        private List<ReplicaProperties> replicas = new ArrayList<>();
+    }
+
+    @Data
+    public static class ReplicaProperties {
+        private String url;
+        private String username;
+        private String password;
+    }
+}
@@ -0,0 +1,16 @@
+
+import java.util.Collection;
+
+public interface HotArticleService {
+
+    /**
+     * Compute hot articles of every channel and publish them to the cache
+     */
+    public void computeHotArticle();
+
+    /**
+     * Remove articles from the published hot lists, used when they are taken down
+     * @param articleIds
+     */
+    public void removeHotArticles(Collection<Long> articleIds);
+}
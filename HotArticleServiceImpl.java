@@ -0,0 +1,287 @@
+
+import com.alibaba.fastjson.JSON;
+import com.baomidou.mybatisplus.core.toolkit.Wrappers;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.BeanUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+@Service
+@Slf4j
+public class HotArticleServiceImpl implements HotArticleService {
+
+    /**
+     * Hot list of a channel, followed by the channel tag: sorted set of article IDs scored by the hot score
+     */
+    public final static String HOT_ARTICLE_FIRST_PAGE = "hot_article_rank_";
+
+    /**
+     * Summaries of a hot list, followed by the channel tag: hash of article ID -> HotArticleVo JSON
+     */
+    public final static String HOT_ARTICLE_SUMMARY = "hot_article_summary_";
+
+    /**
+     * Articles taken down recently: sorted set of article ID -> time taken down
+     * A list computed before that time must not bring them back
+     */
+    private final static String HOT_ARTICLE_DOWN = "hot_article_down";
+
+    /**
+     * Longer than a computeHotArticle run
+     */
+    private final static long DOWN_TTL_SECONDS = 3600;
+
+    /**
+     * KEYS: list, summaries, down set  ARGV: computation start, then (id, score, summary) per article
+     * Replaces a list, leaving out articles taken down after the computation started
+     */
+    private final static DefaultRedisScript<Long> PUBLISH_LIST = new DefaultRedisScript<>(
+            "redis.call('del', KEYS[1], KEYS[2]) " +
+            "for i = 2, #ARGV, 3 do " +
+            "  local down = redis.call('zscore', KEYS[3], ARGV[i]) " +
+            "  if not down or tonumber(down) < tonumber(ARGV[1]) then " +
+            "    redis.call('zadd', KEYS[1], ARGV[i + 1], ARGV[i]) " +
+            "    redis.call('hset', KEYS[2], ARGV[i], ARGV[i + 2]) " +
+            "  end " +
+            "end " +
+            "return redis.call('zcard', KEYS[1])",
+            Long.class);
+
+    /**
+     * KEYS: down set, then (list, summaries) per channel  ARGV: now, ttl seconds, then the article IDs
+     */
+    private final static DefaultRedisScript<Long> REMOVE_ARTICLES = new DefaultRedisScript<>(
+            "redis.call('zremrangebyscore', KEYS[1], '-inf', tonumber(ARGV[1]) - tonumber(ARGV[2]) * 1000) " +
+            "for i = 3, #ARGV do redis.call('zadd', KEYS[1], ARGV[1], ARGV[i]) end " +
+            "redis.call('expire', KEYS[1], ARGV[2]) " +
+            "for k = 2, #KEYS, 2 do " +
+            "  for i = 3, #ARGV do " +
+            "    redis.call('zrem', KEYS[k], ARGV[i]) " +
+            "    redis.call('hdel', KEYS[k + 1], ARGV[i]) " +
+            "  end " +
+            "end " +
+            "return 0",
+            Long.class);
+
+    /**
+     * Only articles published in the last days are ranked
+     */
+    private final static int RECENT_DAYS = 5;
+
+    /**
+     * Articles kept in the hot list of each channel
+     */
+    private final static int TOP_N = 30;
+
+    /**
+     * The score halves every HALF_LIFE_HOURS
+     */
+    private final static double HALF_LIFE_HOURS = 24;
+
+    private final static int PAGE_SIZE = 1000;
+
+    @Autowired
+    private ApArticleMapper apArticleMapper;
+
+    @Autowired
+    private ApArticleConfigMapper apArticleConfigMapper;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private CacheService cacheService;
+
+    /**
+     * Compute hot articles of every channel and publish them to the cache
+     * Recent articles are read once with keyset pagination, each channel keeps a top-N min-heap
+     */
+    @Override
+    public void computeHotArticle() {
+        long now = System.currentTimeMillis();
+        Date since = new Date(now - RECENT_DAYS * 24L * 3600 * 1000);
+
+        Map<String, PriorityQueue<HotArticleVo>> heaps = new HashMap<>();
+        int scanned = 0;
+
+        //1. Stream recent articles ordered by (publish_time, id)
+        Date lastTime = since;
+        long lastId = 0;
+        while (true) {
+            Date pageTime = lastTime;
+            long pageId = lastId;
+            List<ApArticle> page = apArticleMapper.selectList(Wrappers.<ApArticle>lambdaQuery()
+                    .ge(ApArticle::getPublishTime, since)
+                    .le(ApArticle::getPublishTime, new Date(now))
+                    .and(w -> w.gt(ApArticle::getPublishTime, pageTime)
+                            .or(o -> o.eq(ApArticle::getPublishTime, pageTime).gt(ApArticle::getId, pageId)))
+                    .orderByAsc(ApArticle::getPublishTime, ApArticle::getId)
+                    .last("limit " + PAGE_SIZE));
+            if (page.isEmpty()) {
+                break;
+            }
+
+            //2. Skip articles that are down or deleted
+            Set<Long> visible = visibleIds(page);
+            for (ApArticle apArticle : page) {
+                if (visible.contains(apArticle.getId())) {
+                    HotArticleVo vo = new HotArticleVo();
+                    BeanUtils.copyProperties(apArticle, vo);
+                    vo.setScore(computeScore(apArticle, now));
+                    offer(heaps, ArticleConstants.DEFAULT_TAG, vo);
+                    if (apArticle.getChannelId() != null) {
+                        offer(heaps, apArticle.getChannelId().toString(), vo);
+                    }
+                }
+            }
+            scanned += page.size();
+
+            ApArticle last = page.get(page.size() - 1);
+            lastTime = last.getPublishTime();
+            lastId = last.getId();
+            if (page.size() < PAGE_SIZE) {
+                break;
+            }
+        }
+
+        //3. Publish each list in one script, articles taken down while computing stay out
+        Set<String> written = new HashSet<>();
+        for (Map.Entry<String, PriorityQueue<HotArticleVo>> entry : heaps.entrySet()) {
+            String key = HOT_ARTICLE_FIRST_PAGE + entry.getKey();
+            List<String> args = new ArrayList<>();
+            args.add(String.valueOf(now));
+            for (HotArticleVo vo : entry.getValue()) {
+                args.add(vo.getId().toString());
+                args.add(String.valueOf(vo.getScore()));
+                args.add(JSON.toJSONString(vo));
+            }
+            stringRedisTemplate.execute(PUBLISH_LIST, Arrays.asList(key, HOT_ARTICLE_SUMMARY + entry.getKey(), HOT_ARTICLE_DOWN),
+                    args.toArray());
+            written.add(key);
+        }
+
+        //4. Channels without recent articles lose their list, loadHot falls back to the chronological feed
+        for (String key : cacheService.scan(HOT_ARTICLE_FIRST_PAGE + "*")) {
+            if (!written.contains(key)) {
+                stringRedisTemplate.delete(Arrays.asList(key, HOT_ARTICLE_SUMMARY + key.substring(HOT_ARTICLE_FIRST_PAGE.length())));
+            }
+        }
+
+        log.info("Hot articles computed, scanned={}, channels={}, cost={}ms", scanned, heaps.size(), System.currentTimeMillis() - now);
+    }
+
+    /**
+     * Remove articles from the hot list of their channels and of DEFAULT_TAG once the current transaction commits
+     * They are also recorded as taken down, so a computation already running does not publish them again
+     * @param articleIds
+     */
+    @Override
+    public void removeHotArticles(Collection<Long> articleIds) {
+        if (articleIds == null || articleIds.isEmpty()) {
+            return;
+        }
+        //1. The lists the articles can be in
+        Set<String> tags = new HashSet<>();
+        tags.add(ArticleConstants.DEFAULT_TAG);
+        for (ApArticle apArticle : apArticleMapper.selectBatchIds(articleIds)) {
+            if (apArticle.getChannelId() != null) {
+                tags.add(apArticle.getChannelId().toString());
+            }
+        }
+
+        //2. Remove them from every list in one script
+        List<String> keys = new ArrayList<>();
+        keys.add(HOT_ARTICLE_DOWN);
+        for (String tag : tags) {
+            keys.add(HOT_ARTICLE_FIRST_PAGE + tag);
+            keys.add(HOT_ARTICLE_SUMMARY + tag);
+        }
+        List<String> args = new ArrayList<>();
+        args.add(null);
+        args.add(String.valueOf(DOWN_TTL_SECONDS));
+        for (Long articleId : articleIds) {
+            args.add(articleId.toString());
+        }
+        Runnable remove = () -> {
+            args.set(0, String.valueOf(System.currentTimeMillis()));
+            stringRedisTemplate.execute(REMOVE_ARTICLES, keys, args.toArray());
+        };
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    remove.run();
+                }
+            });
+        } else {
+            remove.run();
+        }
+    }
+
+    /**
+     * Engagement weighted by interaction type, halved every HALF_LIFE_HOURS
+     * @param apArticle
+     * @param now
+     * @return
+     */
+    private double computeScore(ApArticle apArticle, long now) {
+        double engagement = 1;
+        if (apArticle.getViews() != null) {
+            engagement += apArticle.getViews();
+        }
+        if (apArticle.getLikes() != null) {
+            engagement += apArticle.getLikes() * 3;
+        }
+        if (apArticle.getComment() != null) {
+            engagement += apArticle.getComment() * 5;
+        }
+        if (apArticle.getCollection() != null) {
+            engagement += apArticle.getCollection() * 8;
+        }
+        double ageHours = Math.max(now - apArticle.getPublishTime().getTime(), 0) / 3600000.0;
+        return engagement * Math.pow(0.5, ageHours / HALF_LIFE_HOURS);
+    }
+
+    /**
+     * Keep the TOP_N highest scores of a channel
+     */
+    private void offer(Map<String, PriorityQueue<HotArticleVo>> heaps, String tag, HotArticleVo vo) {
+        PriorityQueue<HotArticleVo> heap = heaps.computeIfAbsent(tag,
+                k -> new PriorityQueue<>(TOP_N + 1, Comparator.comparing(HotArticleVo::getScore)));
+        if (heap.size() < TOP_N) {
+            heap.offer(vo);
+        } else if (heap.peek().getScore() < vo.getScore()) {
+            heap.poll();
+            heap.offer(vo);
+        }
+    }
+
+    /**
+     * IDs of the page that are neither down nor deleted
+     */
+    private Set<Long> visibleIds(List<ApArticle> page) {
+        List<Long> ids = page.stream().map(ApArticle::getId).collect(Collectors.toList());
+        List<ApArticleConfig> configs = apArticleConfigMapper.selectList(Wrappers.<ApArticleConfig>lambdaQuery()
+                .in(ApArticleConfig::getArticleId, ids)
+                .eq(ApArticleConfig::getIsDown, false)
+                .eq(ApArticleConfig::getIsDelete, false));
+        return configs.stream().map(ApArticleConfig::getArticleId).collect(Collectors.toSet());
+    }
+}
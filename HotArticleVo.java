@@ -0,0 +1,13 @@
+
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+
+@Data
+@EqualsAndHashCode(callSuper = true)
+public class HotArticleVo extends ApArticle {
+
+    /**
+     * Time-decayed hot score
+     */
+    private Double score;
+}
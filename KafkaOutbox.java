@@ -0,0 +1,50 @@
+
+import com.baomidou.mybatisplus.annotation.IdType;
+import com.baomidou.mybatisplus.annotation.TableField;
+import com.baomidou.mybatisplus.annotation.TableId;
+import com.baomidou.mybatisplus.annotation.TableName;
+import lombok.Data;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * Kafka message waiting to be relayed, written in the same transaction as the business change
+ */
+@Data
+@TableName("kafka_outbox")
+public class KafkaOutbox implements Serializable {
+
+    @TableId(value = "id", type = IdType.AUTO)
+    private Long id;
+
+    /**
+     * Target topic
+     */
+    private String topic;
+
+    /**
+     * Message key, keeps the messages of one article on the same partition
+     */
+    @TableField("message_key")
+    private String messageKey;
+
+    /**
+     * Message body
+     */
+    private String payload;
+
+    /**
+     * 0 Pending  1 Sent
+     */
+    private Short status;
+
+    @TableField("created_time")
+    private Date createdTime;
+
+    @TableField("sent_time")
+    private Date sentTime;
+
+    public static final short STATUS_PENDING = 0;
+    public static final short STATUS_SENT = 1;
+}
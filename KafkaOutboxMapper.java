@@ -0,0 +1,40 @@
+
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Delete;
+import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.Select;
+import org.apache.ibatis.annotations.Update;
+
+import java.util.Date;
+import java.util.List;
+
+@Mapper
+public interface KafkaOutboxMapper extends BaseMapper<KafkaOutbox> {
+
+    /**
+     * Oldest pending messages, read without locks, only the elected relay reads them
+     * @param limit
+     * @return
+     */
+    @Select("select id, topic, message_key, payload from kafka_outbox where status = 0 order by id limit #{limit}")
+    List<KafkaOutbox> selectPending(@Param("limit") int limit);
+
+    /**
+     * Mark a whole batch as sent with one update
+     * @param ids
+     * @return
+     */
+    @Update("<script>update kafka_outbox set status = 1, sent_time = now() where id in " +
+            "<foreach collection='ids' item='id' open='(' separator=',' close=')'>#{id}</foreach></script>")
+    int markSent(@Param("ids") List<Long> ids);
+
+    /**
+     * Delete sent messages older than the given time
+     * @param before
+     * @param limit
+     * @return
+     */
+    @Delete("delete from kafka_outbox where status = 1 and sent_time < #{before} limit #{limit}")
+    int deleteSent(@Param("before") Date before, @Param("limit") int limit);
+}
@@ -0,0 +1,153 @@
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.support.SendResult;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.util.concurrent.ListenableFuture;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Relay outbox messages to Kafka
+ * Only the instance holding the relay lease sends, so messages of one key leave in id order
+ * No row locks are held while the sends are acknowledged, the sent prefix is marked afterwards
+ */
+@Component
+@Slf4j
+public class KafkaOutboxRelay {
+
+    private final static int RELAY_BATCH_SIZE = 1000;
+
+    private final static int MAX_BATCHES_PER_ROUND = 50;
+
+    private final static long SEND_TIMEOUT_SECONDS = 10;
+
+    private final static int PURGE_BATCH_SIZE = 5000;
+
+    private final static String RELAY_LEASE_KEY = "kafka_outbox_relay_lease";
+
+    /**
+     * Longer than one batch can take, RELAY_BATCH_SIZE sends of at most SEND_TIMEOUT_SECONDS in total
+     */
+    private final static long RELAY_LEASE_SECONDS = 30;
+
+    /**
+     * Extend the lease only while this instance still owns it
+     */
+    private final static DefaultRedisScript<Long> RENEW_LEASE = new DefaultRedisScript<>(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('expire', KEYS[1], ARGV[2]) else return 0 end",
+            Long.class);
+
+    private final String instanceId = UUID.randomUUID().toString();
+
+    @Autowired
+    private KafkaOutboxMapper kafkaOutboxMapper;
+
+    @Autowired
+    private KafkaTemplate<String,String> kafkaTemplate;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * Poll the outbox, keep draining while full batches come back
+     */
+    @Scheduled(fixedDelay = 200)
+    public void relay() {
+        long start = System.currentTimeMillis();
+        int total = 0;
+        for (int i = 0; i < MAX_BATCHES_PER_ROUND; i++) {
+            //Checked before every batch, a relay that lost the lease stops within one batch
+            if (!holdLease()) {
+                break;
+            }
+            int sent = relayBatch();
+            total += sent;
+            if (sent < RELAY_BATCH_SIZE) {
+                break;
+            }
+        }
+        if (total > 0) {
+            long cost = Math.max(System.currentTimeMillis() - start, 1);
+            log.info("Outbox relay sent {} messages in {}ms, {} msg/s", total, cost, total * 1000L / cost);
+        }
+    }
+
+    /**
+     * Take or extend the relay lease
+     * @return true if this instance is the relay
+     */
+    private boolean holdLease() {
+        try {
+            Long renewed = stringRedisTemplate.execute(RENEW_LEASE, Collections.singletonList(RELAY_LEASE_KEY),
+                    instanceId, String.valueOf(RELAY_LEASE_SECONDS));
+            if (renewed != null && renewed == 1) {
+                return true;
+            }
+            return Boolean.TRUE.equals(stringRedisTemplate.opsForValue()
+                    .setIfAbsent(RELAY_LEASE_KEY, instanceId, RELAY_LEASE_SECONDS, TimeUnit.SECONDS));
+        } catch (Exception e) {
+            log.warn("Outbox relay lease check failed", e);
+            return false;
+        }
+    }
+
+    /**
+     * Send one batch and mark the acknowledged prefix with a single update
+     * @return the number of messages marked as sent
+     */
+    private int relayBatch() {
+        //1. Read pending messages, no transaction and no locks while Kafka acknowledges
+        List<KafkaOutbox> batch = kafkaOutboxMapper.selectPending(RELAY_BATCH_SIZE);
+        if (batch.isEmpty()) {
+            return 0;
+        }
+
+        //2. Send the whole batch without waiting, the producer batches them
+        List<ListenableFuture<SendResult<String, String>>> futures = new ArrayList<>(batch.size());
+        for (KafkaOutbox message : batch) {
+            futures.add(kafkaTemplate.send(message.getTopic(), message.getMessageKey(), message.getPayload()));
+        }
+        kafkaTemplate.flush();
+
+        //3. Collect the acknowledged prefix, stop at the first failure so the rest keeps its order
+        List<Long> sentIds = new ArrayList<>(batch.size());
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                futures.get(i).get(SEND_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                sentIds.add(batch.get(i).getId());
+            } catch (Exception e) {
+                log.error("Outbox relay send failed, id={}, will retry", batch.get(i).getId(), e);
+                break;
+            }
+        }
+
+        //4. Mark the batch as sent
+        if (!sentIds.isEmpty()) {
+            kafkaOutboxMapper.markSent(sentIds);
+        }
+        return sentIds.size();
+    }
+
+    /**
+     * Delete messages sent more than one day ago
+     */
+    @Scheduled(cron = "0 30 3 * * ?")
+    public void purge() {
+        Calendar calendar = Calendar.getInstance();
+        calendar.add(Calendar.DAY_OF_MONTH, -1);
+        int deleted;
+        do {
+            deleted = kafkaOutboxMapper.deleteSent(calendar.getTime(), PURGE_BATCH_SIZE);
+        } while (deleted == PURGE_BATCH_SIZE);
+    }
+}
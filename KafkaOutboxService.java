@@ -0,0 +1,11 @@
+
+public interface KafkaOutboxService {
+
+    /**
+     * Save a message to the outbox within the current transaction
+     * @param topic
+     * @param key
+     * @param payload
+     */
+    public void enqueue(String topic, String key, String payload);
+}
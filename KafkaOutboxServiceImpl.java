@@ -0,0 +1,36 @@
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Date;
+
+@Service
+@Slf4j
+@Transactional
+public class KafkaOutboxServiceImpl implements KafkaOutboxService {
+
+    @Autowired
+    private KafkaOutboxMapper kafkaOutboxMapper;
+
+    /**
+     * Save a message to the outbox
+     * The caller's transaction is required, so the message is only relayed if the business change commits
+     * @param topic
+     * @param key
+     * @param payload
+     */
+    @Override
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void enqueue(String topic, String key, String payload) {
+        KafkaOutbox kafkaOutbox = new KafkaOutbox();
+        kafkaOutbox.setTopic(topic);
+        kafkaOutbox.setMessageKey(key);
+        kafkaOutbox.setPayload(payload);
+        kafkaOutbox.setStatus(KafkaOutbox.STATUS_PENDING);
+        kafkaOutbox.setCreatedTime(new Date());
+        kafkaOutboxMapper.insert(kafkaOutbox);
+    }
+}
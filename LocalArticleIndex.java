@@ -0,0 +1,481 @@
+
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.kafka.clients.admin.AdminClient;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryparser.classic.MultiFieldQueryParser;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TopFieldDocs;
+import org.apache.lucene.search.highlight.Highlighter;
+import org.apache.lucene.search.highlight.NullFragmenter;
+import org.apache.lucene.search.highlight.QueryScorer;
+import org.apache.lucene.search.highlight.SimpleHTMLFormatter;
+import org.apache.lucene.store.MMapDirectory;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.sort.SortOrder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.kafka.KafkaProperties;
+import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.kafka.listener.ConsumerSeekAware;
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.wltea.analyzer.lucene.IKAnalyzer;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process Lucene index of the articles published in the last windowDays
+ * Fed by the article sync topic on a consumer group of its own per host, so every node sees every update
+ * The consumed offsets are committed with the Lucene index and the consumer seeks to them, so the index never skips an update
+ * Results are exact once the newest pageSize matches are all newer than coveredFrom, older pages are left to ES
+ */
+@Component
+@Slf4j
+public class LocalArticleIndex implements ConsumerSeekAware {
+
+    private final static String COVERED_FROM = "coveredFrom";
+
+    private final static String COMMITTED_AT = "committedAt";
+
+    /**
+     * Commit data key prefix of the next offset of each partition
+     */
+    private final static String OFFSET_PREFIX = "offset.";
+
+    /**
+     * An index not committed for this long may have missed updates the topic no longer holds, it is rebuilt
+     */
+    private final static long MAX_RESUME_MILLIS = TimeUnit.HOURS.toMillis(24);
+
+
+    private final static String[] SEARCH_FIELDS = {"title", "content"};
+
+    private final static Sort NEWEST_FIRST = new Sort(
+            new SortField("publishTime", SortField.Type.LONG, true),
+            new SortField("idSort", SortField.Type.LONG, true));
+
+    private final static int BACKFILL_PAGE_SIZE = 1000;
+
+    @Value("${search.local.enabled:false}")
+    private boolean enabled;
+
+    @Value("${search.local.dir:./data/local-article-index}")
+    private String dir;
+
+    @Value("${search.local.window-days:3}")
+    private int windowDays;
+
+    /**
+     * Consumer group of the ES sync listener, its offsets are where a new index starts reading
+     */
+    @Value("${search.local.es-sync-group-id:${spring.kafka.consumer.group-id}}")
+    private String esSyncGroupId;
+
+    /**
+     * Partitions without an offset are replayed from this long before the backfill or the last commit
+     * Must be larger than the ES sync lag alerted on
+     */
+    @Value("${search.local.replay-margin-millis:900000}")
+    private long replayMarginMillis;
+
+    @Autowired
+    private KafkaProperties kafkaProperties;
+
+    @Autowired
+    private RestHighLevelClient restHighLevelClient;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    /**
+     * ik_smart, the analyzer of the title and content fields in ES, so both tiers match the same words
+     */
+    private final Analyzer analyzer = new IKAnalyzer(true);
+
+    private IndexWriter writer;
+
+    private SearcherManager searcherManager;
+
+    /**
+     * Epoch millis from which the index holds every article, Long.MAX_VALUE until the first backfill finished
+     */
+    private volatile long coveredFrom = Long.MAX_VALUE;
+
+    /**
+     * Next offset to consume of each partition, committed with the index
+     */
+    private final Map<Integer, Long> offsets = new ConcurrentHashMap<>();
+
+    /**
+     * Where partitions without a committed offset start reading
+     */
+    private volatile long replayFrom;
+
+    /**
+     * Articles indexed from the topic while the backfill runs, the backfill must not overwrite them with an older ES copy
+     */
+    private final Set<String> indexedDuringBackfill = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean backfilling;
+
+    @PostConstruct
+    public void open() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        Files.createDirectories(Paths.get(dir));
+        IndexWriterConfig config = new IndexWriterConfig(analyzer);
+        config.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
+        writer = new IndexWriter(new MMapDirectory(Paths.get(dir)), config);
+        searcherManager = new SearcherManager(writer, null);
+
+        //Coverage and offsets survive restarts with the last commit
+        Map<String, String> commitData = new HashMap<>();
+        if (writer.getLiveCommitData() != null) {
+            for (Map.Entry<String, String> entry : writer.getLiveCommitData()) {
+                commitData.put(entry.getKey(), entry.getValue());
+            }
+        }
+        String committed = commitData.get(COVERED_FROM);
+        String committedAt = commitData.get(COMMITTED_AT);
+        if (committed != null && Long.parseLong(committed) != Long.MAX_VALUE
+                && committedAt != null && System.currentTimeMillis() - Long.parseLong(committedAt) < MAX_RESUME_MILLIS) {
+            coveredFrom = Long.parseLong(committed);
+            replayFrom = Long.parseLong(committedAt) - replayMarginMillis;
+            for (Map.Entry<String, String> entry : commitData.entrySet()) {
+                if (entry.getKey().startsWith(OFFSET_PREFIX)) {
+                    offsets.put(Integer.valueOf(entry.getKey().substring(OFFSET_PREFIX.length())), Long.valueOf(entry.getValue()));
+                }
+            }
+            log.info("Local article index opened, docs={}, coveredFrom={}, offsets={}", writer.getDocStats().numDocs, coveredFrom, offsets);
+        } else {
+            //New, unfinished or too old, start over: the topic is replayed from what ES had not applied yet,
+            //so every update is either in the backfill or in the replay
+            writer.deleteAll();
+            replayFrom = System.currentTimeMillis() - replayMarginMillis;
+            offsets.putAll(esSyncOffsets());
+            backfilling = true;
+            Thread backfill = new Thread(this::backfill, "local-article-index-backfill");
+            backfill.setDaemon(true);
+            backfill.start();
+        }
+    }
+
+    /**
+     * Committed offsets of the ES sync consumer group, read before the backfill
+     * @return partition -> next offset, empty if they cannot be read, the replay margin applies then
+     */
+    private Map<Integer, Long> esSyncOffsets() {
+        Map<Integer, Long> esOffsets = new HashMap<>();
+        try (AdminClient adminClient = AdminClient.create(kafkaProperties.buildAdminProperties())) {
+            Map<TopicPartition, OffsetAndMetadata> committed = adminClient.listConsumerGroupOffsets(esSyncGroupId)
+                    .partitionsToOffsetAndMetadata().get(30, TimeUnit.SECONDS);
+            for (Map.Entry<TopicPartition, OffsetAndMetadata> entry : committed.entrySet()) {
+                if (ArticleConstants.ARTICLE_ES_SYNC_TOPIC.equals(entry.getKey().topic()) && entry.getValue() != null) {
+                    esOffsets.put(entry.getKey().partition(), entry.getValue().offset());
+                }
+            }
+        } catch (Exception e) {
+            log.warn("ES sync offsets of group {} unavailable, replaying {}ms before the backfill", esSyncGroupId, replayMarginMillis, e);
+        }
+        return esOffsets;
+    }
+
+    /**
+     * Resume every partition at the offset committed with the index, not at the consumer group's offset
+     */
+    @Override
+    public void onPartitionsAssigned(Map<TopicPartition, Long> assignments, ConsumerSeekCallback callback) {
+        for (TopicPartition partition : assignments.keySet()) {
+            Long offset = offsets.get(partition.partition());
+            if (offset != null) {
+                callback.seek(partition.topic(), partition.partition(), offset);
+            } else {
+                callback.seekToTimestamp(partition.topic(), partition.partition(), replayFrom);
+            }
+        }
+    }
+
+    /**
+     * Fill an empty index with the window from ES
+     */
+    private void backfill() {
+        long windowStart = windowStart();
+        Object[] searchAfter = null;
+        int docs = 0;
+        try {
+            while (true) {
+                SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
+                searchSourceBuilder.query(QueryBuilders.rangeQuery("publishTime").gte(windowStart));
+                searchSourceBuilder.size(BACKFILL_PAGE_SIZE);
+                searchSourceBuilder.sort("publishTime", SortOrder.DESC);
+                searchSourceBuilder.sort("id", SortOrder.DESC);
+                if (searchAfter != null) {
+                    searchSourceBuilder.searchAfter(searchAfter);
+                }
+                SearchResponse searchResponse = restHighLevelClient.search(
+                        new SearchRequest(SyncArticleBulkListener.ARTICLE_INDEX).source(searchSourceBuilder), RequestOptions.DEFAULT);
+                SearchHit[] hits = searchResponse.getHits().getHits();
+                for (SearchHit hit : hits) {
+                    Map<String, Object> source = hit.getSourceAsMap();
+                    source.put("content", ArticleSearchDocumentUtils.plainText((String) source.get("content")));
+                    synchronized (this) {
+                        //The topic copy is at least as new as the ES one
+                        if (!indexedDuringBackfill.contains(hit.getId())) {
+                            index(source);
+                        }
+                    }
+                }
+                docs += hits.length;
+                if (hits.length < BACKFILL_PAGE_SIZE) {
+                    break;
+                }
+                searchAfter = hits[hits.length - 1].getSortValues();
+            }
+            backfilling = false;
+            indexedDuringBackfill.clear();
+            commit(windowStart);
+            log.info("Local article index backfilled, docs={}, coveredFrom={}", docs, windowStart);
+        } catch (Exception e) {
+            log.error("Local article index backfill failed, searches go to ES", e);
+        }
+    }
+
+    @KafkaListener(topics = ArticleConstants.ARTICLE_ES_SYNC_TOPIC,
+            groupId = "${search.local.group-id:search-local-${HOSTNAME:localhost}}",
+            autoStartup = "${search.local.enabled:false}",
+            containerFactory = SearchKafkaConfig.ES_SYNC_BATCH_FACTORY)
+    public void onMessages(List<ConsumerRecord<String, String>> records, Acknowledgment acknowledgment) throws IOException {
+        if (writer == null) {
+            return;
+        }
+        long windowStart = windowStart();
+        for (ConsumerRecord<String, String> record : records) {
+            if (StringUtils.isBlank(record.value())) {
+                continue;
+            }
+            Map<String, Object> document = ArticleSearchDocumentUtils.toDocument(record.value());
+            Object publishTime = document.get("publishTime");
+            //Updates of older articles are outside the window
+            if (publishTime instanceof Long && (Long) publishTime >= windowStart) {
+                synchronized (this) {
+                    if (backfilling && document.get("id") != null) {
+                        indexedDuringBackfill.add(document.get("id").toString());
+                    }
+                    index(document);
+                }
+            }
+        }
+        for (ConsumerRecord<String, String> record : records) {
+            offsets.merge(record.partition(), record.offset() + 1, Math::max);
+        }
+        //The offsets are committed together with the documents
+        commit(coveredFrom);
+        acknowledgment.acknowledge();
+    }
+
+    /**
+     * Drop articles that left the window
+     */
+    @Scheduled(fixedDelay = 60 * 60 * 1000)
+    public void evict() throws IOException {
+        if (writer == null) {
+            return;
+        }
+        long windowStart = windowStart();
+        writer.deleteDocuments(LongPoint.newRangeQuery("publishTime", Long.MIN_VALUE, windowStart - 1));
+        commit(coveredFrom == Long.MAX_VALUE ? Long.MAX_VALUE : Math.max(coveredFrom, windowStart));
+    }
+
+    /**
+     * Near real time, make new documents searchable
+     */
+    @Scheduled(fixedDelay = 1000)
+    public void refresh() throws IOException {
+        if (searcherManager != null) {
+            searcherManager.maybeRefresh();
+        }
+    }
+
+    /**
+     * One page of articles published before minBehotTime
+     * @param dto
+     * @param degraded accept an incomplete page, used when ES is failing
+     * @return hits shaped like the ES result, null when the window cannot answer exactly and ES has to
+     */
+    public List<Map> search(UserSearchDto dto, boolean degraded) throws IOException {
+        if (searcherManager == null) {
+            return null;
+        }
+        long minBehotTime = dto.getMinBehotTime().getTime();
+        if (!degraded && minBehotTime <= coveredFrom) {
+            return null;
+        }
+
+        //1. Same query as ES: words on title and content, publishTime < minBehotTime, newest first
+        Query words;
+        MultiFieldQueryParser parser = new MultiFieldQueryParser(SEARCH_FIELDS, analyzer);
+        parser.setDefaultOperator(QueryParser.Operator.OR);
+        try {
+            words = parser.parse(dto.getSearchWords());
+        } catch (ParseException e) {
+            try {
+                words = parser.parse(QueryParser.escape(dto.getSearchWords()));
+            } catch (ParseException ex) {
+                return degraded ? Collections.emptyList() : null;
+            }
+        }
+        Query query = new BooleanQuery.Builder()
+                .add(words, BooleanClause.Occur.MUST)
+                .add(LongPoint.newRangeQuery("publishTime", Long.MIN_VALUE, minBehotTime - 1), BooleanClause.Occur.FILTER)
+                .build();
+
+        IndexSearcher searcher = searcherManager.acquire();
+        try {
+            TopFieldDocs topDocs = searcher.search(query, dto.getPageSize(), NEWEST_FIRST);
+            ScoreDoc[] scoreDocs = topDocs.scoreDocs;
+
+            //2. Exact only if the page is full and does not reach below the covered range
+            if (!degraded) {
+                if (scoreDocs.length < dto.getPageSize()) {
+                    return null;
+                }
+                Document last = searcher.doc(scoreDocs[scoreDocs.length - 1].doc);
+                if (last.getField("publishTime").numericValue().longValue() < coveredFrom) {
+                    return null;
+                }
+            }
+
+            //3. Package results, highlight title like ES
+            Highlighter highlighter = new Highlighter(
+                    new SimpleHTMLFormatter("<font style='color: red; font-size: inherit;'>", "</font>"),
+                    new QueryScorer(words, "title"));
+            highlighter.setTextFragmenter(new NullFragmenter());
+            List<Map> list = new ArrayList<>(scoreDocs.length);
+            for (ScoreDoc scoreDoc : scoreDocs) {
+                Document document = searcher.doc(scoreDoc.doc);
+                Map<String, Object> map = new HashMap<>();
+                for (IndexableField field : document.getFields()) {
+                    map.put(field.name(), field.numericValue() != null ? field.numericValue() : field.stringValue());
+                }
+                String title = document.get("title");
+                String highlighted = null;
+                try {
+                    highlighted = title == null ? null : highlighter.getBestFragment(analyzer, "title", title);
+                } catch (Exception e) {
+                    log.warn("Local highlight failed, id={}", document.get("id"), e);
+                }
+                map.put("id", Long.valueOf(document.get("id")));
+                map.put("h_title", highlighted != null ? highlighted : title);
+                list.add(map);
+            }
+            meterRegistry.counter("search.article.tier", "tier", degraded ? "degraded" : "local").increment();
+            return list;
+        } finally {
+            searcherManager.release(searcher);
+        }
+    }
+
+    private void index(Map<String, Object> source) throws IOException {
+        Object id = source.get("id");
+        Object publishTime = source.get("publishTime");
+        if (id == null || !(publishTime instanceof Number)) {
+            return;
+        }
+        long time = ((Number) publishTime).longValue();
+        Document document = new Document();
+        document.add(new StringField("id", id.toString(), Field.Store.YES));
+        document.add(new NumericDocValuesField("idSort", Long.parseLong(id.toString())));
+        document.add(new LongPoint("publishTime", time));
+        document.add(new NumericDocValuesField("publishTime", time));
+        document.add(new StoredField("publishTime", time));
+        addText(document, "title", source.get("title"), Field.Store.YES);
+        addText(document, "content", source.get("content"), Field.Store.NO);
+        for (String name : new String[]{"images", "authorName", "staticUrl"}) {
+            if (source.get(name) != null) {
+                document.add(new StoredField(name, source.get(name).toString()));
+            }
+        }
+        if (source.get("layout") instanceof Number) {
+            document.add(new StoredField("layout", ((Number) source.get("layout")).intValue()));
+        }
+        if (source.get("authorId") instanceof Number) {
+            document.add(new StoredField("authorId", ((Number) source.get("authorId")).longValue()));
+        }
+        writer.updateDocument(new Term("id", id.toString()), document);
+    }
+
+    private void addText(Document document, String name, Object value, Field.Store store) {
+        if (value != null) {
+            document.add(new TextField(name, value.toString(), store));
+        }
+    }
+
+    private synchronized void commit(long covered) throws IOException {
+        coveredFrom = covered;
+        Map<String, String> commitData = new HashMap<>();
+        commitData.put(COVERED_FROM, String.valueOf(covered));
+        commitData.put(COMMITTED_AT, String.valueOf(System.currentTimeMillis()));
+        for (Map.Entry<Integer, Long> entry : offsets.entrySet()) {
+            commitData.put(OFFSET_PREFIX + entry.getKey(), String.valueOf(entry.getValue()));
+        }
+        writer.setLiveCommitData(commitData.entrySet());
+        writer.commit();
+    }
+
+    private long windowStart() {
+        return System.currentTimeMillis() - TimeUnit.DAYS.toMillis(windowDays);
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        if (writer != null) {
+            searcherManager.close();
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Checks the replication lag of every replica, replicas behind by more than maxLagSeconds are not used
+ */
+@Slf4j
+public class ReplicaHealthMonitor {
+
+    private final Map<String, DataSource> dataSources;
+
+    private final Map<String, JdbcTemplate> replicas = new LinkedHashMap<>();
+
+    private final Map<String, Double> lagSeconds = new ConcurrentHashMap<>();
+
+    private final long maxLagSeconds;
+
+    private volatile List<String> healthy = Collections.emptyList();
+
+    public ReplicaHealthMonitor(Map<String, DataSource> replicas, long maxLagSeconds, MeterRegistry meterRegistry) {
+        this.dataSources = replicas;
+        this.maxLagSeconds = maxLagSeconds;
+        for (Map.Entry<String, DataSource> entry : replicas.entrySet()) {
+            String name = entry.getKey();
+            this.replicas.put(name, new JdbcTemplate(entry.getValue()));
+            lagSeconds.put(name, -1.0);
+            Gauge.builder("datasource.replica.lag.seconds", lagSeconds, m -> m.get(name)).tag("replica", name).register(meterRegistry);
+        }
+        check();
+    }
+
+    public List<String> healthyReplicas() {
+        return healthy;
+    }
+
+    public Map<String, DataSource> dataSources() {
+        return dataSources;
+    }
+
+    /**
+     * Read Seconds_Behind_Master of every replica, a stopped replication or a failed check counts as unhealthy
+     */
+    @Scheduled(fixedDelay = 5000)
+    public void check() {
+        List<String> result = new ArrayList<>();
+        for (Map.Entry<String, JdbcTemplate> entry : replicas.entrySet()) {
+            String name = entry.getKey();
+            try {
+                List<Map<String, Object>> rows = entry.getValue().queryForList("SHOW SLAVE STATUS");
+                Object lag = rows.isEmpty() ? null : rows.get(0).get("Seconds_Behind_Master");
+                if (lag == null) {
+                    lagSeconds.put(name, -1.0);
+                    log.warn("Replica {} is not replicating", name);
+                    continue;
+                }
+                double seconds = ((Number) lag).doubleValue();
+                lagSeconds.put(name, seconds);
+                if (seconds <= maxLagSeconds) {
+                    result.add(name);
+                }
+            } catch (Exception e) {
+                lagSeconds.put(name, -1.0);
+                log.warn("Replica {} health check failed: {}", name, e.getMessage());
+            }
+        }
+        healthy = Collections.unmodifiableList(result);
+    }
+}
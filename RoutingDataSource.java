@@ -0,0 +1,44 @@
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends read-only transactions to a healthy replica and everything else to the primary
+ * Must be wrapped in a LazyConnectionDataSourceProxy, so the connection is taken after the read-only flag is set
+ */
+public class RoutingDataSource extends AbstractRoutingDataSource {
+
+    public final static String PRIMARY = "primary";
+
+    private final ReplicaHealthMonitor replicaHealthMonitor;
+
+    private final MeterRegistry meterRegistry;
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    public RoutingDataSource(ReplicaHealthMonitor replicaHealthMonitor, MeterRegistry meterRegistry) {
+        this.replicaHealthMonitor = replicaHealthMonitor;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        if (!TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+            meterRegistry.counter("datasource.routing", "target", PRIMARY, "reason", "write").increment();
+            return PRIMARY;
+        }
+        List<String> healthy = replicaHealthMonitor.healthyReplicas();
+        if (healthy.isEmpty()) {
+            //No replica within the lag limit
+            meterRegistry.counter("datasource.routing", "target", PRIMARY, "reason", "fallback").increment();
+            return PRIMARY;
+        }
+        String replica = healthy.get(Math.floorMod(next.getAndIncrement(), healthy.size()));
+        meterRegistry.counter("datasource.routing", "target", replica, "reason", "read").increment();
+        return replica;
+    }
+}
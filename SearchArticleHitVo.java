@@ -0,0 +1,37 @@
+
+import com.alibaba.fastjson.annotation.JSONField;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Data;
+
+/**
+ * One article of the search result list, read straight from the _source fields the list needs
+ */
+@Data
+public class SearchArticleHitVo {
+
+    private Long id;
+
+    private String title;
+
+    /**
+     * Title with the search words highlighted
+     */
+    @JsonProperty("h_title")
+    @JSONField(name = "h_title")
+    private String hTitle;
+
+    /**
+     * Publish time in epoch milliseconds
+     */
+    private Long publishTime;
+
+    private Integer layout;
+
+    private String images;
+
+    private Long authorId;
+
+    private String authorName;
+
+    private String staticUrl;
+}
@@ -0,0 +1,337 @@
+
+import com.alibaba.fastjson.JSON;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Write-behind buffer of user search history
+ * Repeated searches of a word by a user collapse into one record, records are written to ap_user_search in bulk
+ * Every record is appended to a journal first, so buffered records survive a restart
+ */
+@Component
+@Slf4j
+public class SearchHistoryBuffer {
+
+    /**
+     * Records kept per user, older ones are removed after each flush
+     */
+    private final static int MAX_HISTORY_PER_USER = 10;
+
+    /**
+     * Records buffered before a flush is started without waiting for the interval
+     */
+    private final static int FLUSH_THRESHOLD = 5000;
+
+    /**
+     * Records beyond this are dropped while the history store is not keeping up
+     */
+    private final static int MAX_BUFFERED = 100000;
+
+    private final static String JOURNAL_FILE = "search-history.journal";
+
+    private final static String FLUSHING_FILE = "search-history.flushing";
+
+    private final static String RECOVERING_FILE = "search-history.recovering";
+
+    @Value("${search.history.journal-dir:./data}")
+    private String journalDir;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    /**
+     * userId + keyword -> latest search, guarded by this
+     */
+    private Map<String, HistoryRecord> buffer = new LinkedHashMap<>();
+
+    private BufferedWriter journal;
+
+    private final Object flushLock = new Object();
+
+    private final AtomicBoolean flushQueued = new AtomicBoolean();
+
+    private final ExecutorService flusher = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "search-history-flush");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Load records left by the last run
+     */
+    @PostConstruct
+    public void init() throws IOException {
+        //The upsert and the trim rely on one document per (userId, keyword)
+        try {
+            mongoTemplate.indexOps(ApUserSearch.class).ensureIndex(new Index()
+                    .on("userId", Sort.Direction.ASC).on("keyword", Sort.Direction.ASC).unique());
+        } catch (Exception e) {
+            log.error("Search history unique index (userId, keyword) could not be created, duplicates may exist", e);
+        }
+
+        Files.createDirectories(Paths.get(journalDir));
+        List<HistoryRecord> recovered = new ArrayList<>();
+        recovered.addAll(readJournal(flushingPath()));
+        recovered.addAll(readJournal(journalPath()));
+        synchronized (this) {
+            for (HistoryRecord record : recovered) {
+                buffer.remove(record.key());
+                buffer.put(record.key(), record);
+            }
+            //The recovered records become the new journal before the flushing one is deleted, a crash in between keeps both
+            Path recovering = Paths.get(journalDir, RECOVERING_FILE);
+            try (BufferedWriter writer = Files.newBufferedWriter(recovering, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE, StandardOpenOption.SYNC)) {
+                for (HistoryRecord record : buffer.values()) {
+                    writer.write(JSON.toJSONString(record));
+                    writer.newLine();
+                }
+            }
+            Files.move(recovering, journalPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.deleteIfExists(flushingPath());
+            journal = openJournal(journalPath());
+        }
+        if (!recovered.isEmpty()) {
+            log.info("Search history recovered from journal, records={}", buffer.size());
+        }
+    }
+
+    /**
+     * Record a search, returns immediately
+     * @param keyword
+     * @param userId
+     */
+    public void add(String keyword, Integer userId) {
+        HistoryRecord record = new HistoryRecord();
+        record.setUserId(userId);
+        record.setKeyword(keyword);
+        record.setCreatedTime(System.currentTimeMillis());
+        int size;
+        synchronized (this) {
+            if (buffer.size() >= MAX_BUFFERED && !buffer.containsKey(record.key())) {
+                meterRegistry.counter("search.history.buffer", "result", "dropped").increment();
+                return;
+            }
+            try {
+                journal.write(JSON.toJSONString(record));
+                journal.newLine();
+            } catch (IOException e) {
+                log.warn("Search history journal write failed", e);
+            }
+            //Remove first so the latest search moves to the end
+            buffer.remove(record.key());
+            buffer.put(record.key(), record);
+            size = buffer.size();
+        }
+        meterRegistry.counter("search.history.buffer", "result", "buffered").increment();
+        if (size >= FLUSH_THRESHOLD && flushQueued.compareAndSet(false, true)) {
+            flusher.execute(() -> {
+                flushQueued.set(false);
+                flush();
+            });
+        }
+    }
+
+    /**
+     * Make journal writes durable at most this long after the search
+     */
+    @Scheduled(fixedDelay = 200)
+    public synchronized void syncJournal() {
+        try {
+            journal.flush();
+        } catch (IOException e) {
+            log.warn("Search history journal flush failed", e);
+        }
+    }
+
+    /**
+     * Write the buffered records to ap_user_search
+     */
+    @Scheduled(fixedDelay = 1000)
+    public void flush() {
+        synchronized (flushLock) {
+            //1. Swap the buffer and the journal, new searches go to a fresh journal
+            Collection<HistoryRecord> records;
+            synchronized (this) {
+                if (buffer.isEmpty()) {
+                    return;
+                }
+                records = buffer.values();
+                buffer = new LinkedHashMap<>();
+                try {
+                    journal.close();
+                    Files.move(journalPath(), flushingPath(), StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException e) {
+                    //The records stay in the journal, upserting them again after a restart is harmless
+                    log.error("Search history journal rotation failed", e);
+                }
+                try {
+                    journal = openJournal(journalPath());
+                } catch (IOException e) {
+                    throw new IllegalStateException("Search history journal cannot be opened", e);
+                }
+            }
+
+            //2. Bulk upsert and trim
+            try {
+                write(records);
+                meterRegistry.counter("search.history.buffer", "result", "flushed").increment(records.size());
+            } catch (Exception e) {
+                log.error("Search history flush failed, records={}", records.size(), e);
+                //Back into the buffer and the new journal, the next flush tries again
+                synchronized (this) {
+                    int dropped = 0;
+                    for (HistoryRecord record : records) {
+                        if (buffer.containsKey(record.key())) {
+                            continue;
+                        }
+                        if (buffer.size() >= MAX_BUFFERED) {
+                            dropped++;
+                        } else {
+                            buffer.put(record.key(), record);
+                            try {
+                                journal.write(JSON.toJSONString(record));
+                                journal.newLine();
+                            } catch (IOException ex) {
+                                log.warn("Search history journal write failed", ex);
+                            }
+                        }
+                    }
+                    if (dropped > 0) {
+                        meterRegistry.counter("search.history.buffer", "result", "dropped").increment(dropped);
+                    }
+                    syncJournal();
+                }
+            }
+
+            try {
+                Files.deleteIfExists(flushingPath());
+            } catch (IOException e) {
+                log.warn("Search history flushing journal delete failed", e);
+            }
+        }
+    }
+
+    private void write(Collection<HistoryRecord> records) {
+        //Upsert every (user, keyword) with its latest search time
+        BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, ApUserSearch.class);
+        Set<Integer> userIds = new HashSet<>();
+        for (HistoryRecord record : records) {
+            Query query = Query.query(Criteria.where("userId").is(record.getUserId()).and("keyword").is(record.getKeyword()));
+            bulkOperations.upsert(query, Update.update("createdTime", new Date(record.getCreatedTime())));
+            userIds.add(record.getUserId());
+        }
+        bulkOperations.execute();
+
+        //Keep the newest MAX_HISTORY_PER_USER records of each user
+        List<Object> expired = new ArrayList<>();
+        for (Integer userId : userIds) {
+            Query query = Query.query(Criteria.where("userId").is(userId))
+                    .with(Sort.by(Sort.Direction.DESC, "createdTime"))
+                    .skip(MAX_HISTORY_PER_USER);
+            query.fields().include("_id");
+            for (ApUserSearch apUserSearch : mongoTemplate.find(query, ApUserSearch.class)) {
+                expired.add(apUserSearch.getId());
+            }
+        }
+        if (!expired.isEmpty()) {
+            mongoTemplate.remove(Query.query(Criteria.where("_id").in(expired)), ApUserSearch.class);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flusher.shutdown();
+        flush();
+        synchronized (this) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                log.warn("Search history journal close failed", e);
+            }
+        }
+    }
+
+    private List<HistoryRecord> readJournal(Path path) throws IOException {
+        List<HistoryRecord> records = new ArrayList<>();
+        if (!Files.exists(path)) {
+            return records;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                try {
+                    records.add(JSON.parseObject(line, HistoryRecord.class));
+                } catch (Exception e) {
+                    //A torn last line after a crash
+                    log.warn("Search history journal line skipped: {}", line);
+                }
+            }
+        }
+        return records;
+    }
+
+    private BufferedWriter openJournal(Path path) throws IOException {
+        return Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    private Path journalPath() {
+        return Paths.get(journalDir, JOURNAL_FILE);
+    }
+
+    private Path flushingPath() {
+        return Paths.get(journalDir, FLUSHING_FILE);
+    }
+
+    @Data
+    public static class HistoryRecord {
+
+        private Integer userId;
+
+        private String keyword;
+
+        private Long createdTime;
+
+        String key() {
+            return userId + "\u0001" + keyword;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * /actuator/searchslowlog, the recent article searches slower than search.slow-query.threshold-millis
+ */
+@Component
+@Endpoint(id = "searchslowlog")
+public class SearchSlowQueryEndpoint {
+
+    @Autowired
+    private ArticleSearchMetrics articleSearchMetrics;
+
+    @ReadOperation
+    public List<ArticleSearchMetrics.SlowQuery> slowQueries() {
+        return articleSearchMetrics.slowQueries();
+    }
+}
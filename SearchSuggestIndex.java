@@ -0,0 +1,309 @@
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.sort.SortOrder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationResults;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * In-memory autocomplete over popular search words and article titles
+ * A compact array trie stores the top TOP_K completions of every prefix, a lookup walks the prefix and copies them
+ * The trie is rebuilt in the background and swapped in atomically
+ */
+@Component
+@Slf4j
+public class SearchSuggestIndex {
+
+    public final static int TOP_K = 10;
+
+    private final static int MAX_TERM_LENGTH = 32;
+
+    private final static int MAX_KEYWORDS = 100000;
+
+    private final static int MAX_TITLES = 10000;
+
+    /**
+     * A title counts like this many searches of it
+     */
+    private final static long TITLE_WEIGHT = 1;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private RestHighLevelClient restHighLevelClient;
+
+    private volatile Trie trie = Trie.build(new HashMap<>());
+
+    /**
+     * Rebuild from the search history and the newest article titles
+     */
+    @Scheduled(fixedDelay = 10 * 60 * 1000)
+    public void rebuild() {
+        long start = System.currentTimeMillis();
+        Map<String, Long> weights = new HashMap<>();
+        try {
+            //1. Search words weighted by how often they were searched
+            Aggregation aggregation = Aggregation.newAggregation(
+                    Aggregation.group("keyword").count().as("count"),
+                    Aggregation.sort(Sort.Direction.DESC, "count"),
+                    Aggregation.limit(MAX_KEYWORDS));
+            AggregationResults<Map> results = mongoTemplate.aggregate(aggregation, ApUserSearch.class, Map.class);
+            for (Map result : results.getMappedResults()) {
+                Object keyword = result.get("_id");
+                Object count = result.get("count");
+                if (keyword != null && count instanceof Number) {
+                    weights.merge(keyword.toString(), ((Number) count).longValue(), Long::sum);
+                }
+            }
+
+            //2. Titles of the newest articles
+            SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
+            searchSourceBuilder.fetchSource("title", null);
+            searchSourceBuilder.size(MAX_TITLES);
+            searchSourceBuilder.sort("publishTime", SortOrder.DESC);
+            SearchResponse searchResponse = restHighLevelClient.search(
+                    new SearchRequest(SyncArticleBulkListener.ARTICLE_INDEX).source(searchSourceBuilder), RequestOptions.DEFAULT);
+            for (SearchHit hit : searchResponse.getHits().getHits()) {
+                Object title = hit.getSourceAsMap().get("title");
+                if (title != null) {
+                    weights.merge(title.toString(), TITLE_WEIGHT, Long::sum);
+                }
+            }
+        } catch (Exception e) {
+            log.error("Suggest index rebuild failed, keeping the current one", e);
+            return;
+        }
+
+        //3. Build aside and swap
+        Trie built = Trie.build(weights);
+        trie = built;
+        log.info("Suggest index rebuilt, terms={}, nodes={}, cost={}ms", built.terms.length, built.labels.length, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Top completions of a prefix without allocating
+     * @param prefix trimmed and in lower case
+     * @param out receives up to out.length completions, best first
+     * @return number of completions written
+     */
+    public int suggest(CharSequence prefix, String[] out) {
+        return trie.lookup(prefix, out);
+    }
+
+    /**
+     * Top completions shaped like the associate words result
+     * @param prefix
+     * @param size
+     * @return [{"associateWords":"..."}]
+     */
+    public List<Map> suggest(String prefix, int size) {
+        String[] out = new String[Math.min(Math.max(size, 0), TOP_K)];
+        int count = suggest(normalize(prefix), out);
+        List<Map> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Map<String, String> map = new HashMap<>();
+            map.put("associateWords", out[i]);
+            list.add(map);
+        }
+        return list;
+    }
+
+    private static String normalize(String term) {
+        return StringUtils.trimToEmpty(term).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Array trie, node i has children firstChild[i] .. firstChild[i] + childCount[i] - 1 sorted by label
+     * top[i * TOP_K ..] holds the term ids of the best completions below node i, -1 when fewer
+     */
+    private static class Trie {
+
+        private final String[] terms;
+
+        private final char[] labels;
+
+        private final int[] firstChild;
+
+        private final int[] childCount;
+
+        private final int[] top;
+
+        private Trie(String[] terms, char[] labels, int[] firstChild, int[] childCount, int[] top) {
+            this.terms = terms;
+            this.labels = labels;
+            this.firstChild = firstChild;
+            this.childCount = childCount;
+            this.top = top;
+        }
+
+        int lookup(CharSequence prefix, String[] out) {
+            int node = 0;
+            for (int i = 0; i < prefix.length(); i++) {
+                node = child(node, prefix.charAt(i));
+                if (node < 0) {
+                    return 0;
+                }
+            }
+            int count = 0;
+            int base = node * TOP_K;
+            while (count < out.length && count < TOP_K && top[base + count] >= 0) {
+                out[count] = terms[top[base + count]];
+                count++;
+            }
+            return count;
+        }
+
+        private int child(int node, char c) {
+            int lo = firstChild[node];
+            int hi = lo + childCount[node] - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                char label = labels[mid];
+                if (label < c) {
+                    lo = mid + 1;
+                } else if (label > c) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Build breadth first over the sorted terms, every node covers a range of terms sharing its prefix
+         * @param weights term -> weight
+         * @return
+         */
+        static Trie build(Map<String, Long> weights) {
+            //1. Normalize, merge and sort the terms
+            Map<String, Long> merged = new HashMap<>();
+            for (Map.Entry<String, Long> entry : weights.entrySet()) {
+                String term = normalize(entry.getKey());
+                if (term.isEmpty()) {
+                    continue;
+                }
+                if (term.length() > MAX_TERM_LENGTH) {
+                    term = term.substring(0, MAX_TERM_LENGTH);
+                }
+                merged.merge(term, entry.getValue(), Long::sum);
+            }
+            String[] terms = merged.keySet().toArray(new String[0]);
+            Arrays.sort(terms);
+            long[] termWeights = new long[terms.length];
+            for (int i = 0; i < terms.length; i++) {
+                termWeights[i] = merged.get(terms[i]);
+            }
+
+            //2. Nodes in breadth first order, the children of a node are allocated together
+            IntList rangeLo = new IntList();
+            IntList rangeHi = new IntList();
+            IntList depths = new IntList();
+            StringBuilder labelBuilder = new StringBuilder();
+            IntList firstChild = new IntList();
+            IntList childCount = new IntList();
+            rangeLo.add(0);
+            rangeHi.add(terms.length);
+            depths.add(0);
+            labelBuilder.append('\0');
+            for (int node = 0; node < rangeLo.size(); node++) {
+                int lo = rangeLo.get(node);
+                int hi = rangeHi.get(node);
+                int depth = depths.get(node);
+                firstChild.add(rangeLo.size());
+                int children = 0;
+                //Terms ending at this node sort first
+                int i = lo;
+                while (i < hi && terms[i].length() == depth) {
+                    i++;
+                }
+                while (i < hi) {
+                    char c = terms[i].charAt(depth);
+                    int j = i + 1;
+                    while (j < hi && terms[j].charAt(depth) == c) {
+                        j++;
+                    }
+                    rangeLo.add(i);
+                    rangeHi.add(j);
+                    depths.add(depth + 1);
+                    labelBuilder.append(c);
+                    children++;
+                    i = j;
+                }
+                childCount.add(children);
+            }
+
+            //3. Top completions of every node
+            int nodes = rangeLo.size();
+            int[] top = new int[nodes * TOP_K];
+            Arrays.fill(top, -1);
+            for (int node = 0; node < nodes; node++) {
+                int base = node * TOP_K;
+                for (int t = rangeLo.get(node); t < rangeHi.get(node); t++) {
+                    //Insertion into the fixed size list, heaviest first
+                    int pos = TOP_K;
+                    while (pos > 0 && (top[base + pos - 1] < 0 || termWeights[top[base + pos - 1]] < termWeights[t])) {
+                        pos--;
+                    }
+                    if (pos == TOP_K) {
+                        continue;
+                    }
+                    System.arraycopy(top, base + pos, top, base + pos + 1, TOP_K - pos - 1);
+                    top[base + pos] = t;
+                }
+            }
+
+            char[] labels = new char[labelBuilder.length()];
+            labelBuilder.getChars(0, labels.length, labels, 0);
+            return new Trie(terms, labels, firstChild.toArray(), childCount.toArray(), top);
+        }
+    }
+
+    /**
+     * Growable int array used while building
+     */
+    private static class IntList {
+
+        private int[] values = new int[1024];
+
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int get(int index) {
+            return values[index];
+        }
+
+        int size() {
+            return size;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
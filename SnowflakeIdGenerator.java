@@ -0,0 +1,196 @@
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Snowflake ID generator
+ * 1 bit sign | 41 bits milliseconds since 2021-01-01 | 10 bits worker | 12 bits sequence
+ * The timestamp and the sequence share one AtomicLong, so nextId is a lock-free CAS loop.
+ * If the clock moves backwards the generator keeps counting on the last timestamp, up to MAX_DRIFT_MILLIS.
+ */
+@Component
+@Slf4j
+public class SnowflakeIdGenerator {
+
+    private final static long EPOCH = 1609459200000L;
+
+    private final static int WORKER_BITS = 10;
+    private final static int SEQUENCE_BITS = 12;
+
+    private final static long MAX_WORKER = (1L << WORKER_BITS) - 1;
+    private final static long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    /**
+     * How far the generator may run ahead of the clock, after a backward step or when the sequence overflows
+     */
+    private final static long MAX_DRIFT_MILLIS = 5000;
+
+    private final static String WORKER_KEY = "snowflake:worker:";
+    private final static long WORKER_LEASE_SECONDS = 60;
+
+    /**
+     * IDs are refused this long before the lease would expire in Redis, covers clock rate differences and slow renewals
+     */
+    private final static long LEASE_SAFETY_MARGIN_SECONDS = 10;
+
+    /**
+     * Take the worker key if it is free or already ours, with a fresh TTL
+     */
+    private final static DefaultRedisScript<Long> RENEW_LEASE = new DefaultRedisScript<>(
+            "local owner = redis.call('get', KEYS[1]) "
+                    + "if owner == false or owner == ARGV[1] then redis.call('set', KEYS[1], ARGV[1], 'EX', ARGV[2]) return 1 end "
+                    + "return 0",
+            Long.class);
+
+    /**
+     * Fixed worker ID, -1 to lease one from Redis
+     */
+    @Value("${snowflake.worker-id:-1}")
+    private long configuredWorkerId;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * (timestamp << SEQUENCE_BITS) | sequence of the last ID
+     */
+    private final AtomicLong state = new AtomicLong();
+
+    private final String leaseToken = UUID.randomUUID().toString();
+
+    private volatile long workerId = -1;
+
+    private volatile boolean leaseLost;
+
+    /**
+     * System.nanoTime until which the leased worker ID may be used, measured from before the last renewal was sent
+     */
+    private volatile long leaseValidUntilNanos;
+
+    @PostConstruct
+    public void init() {
+        if (configuredWorkerId >= 0) {
+            if (configuredWorkerId > MAX_WORKER) {
+                throw new IllegalStateException("snowflake.worker-id must be between 0 and " + MAX_WORKER);
+            }
+            workerId = configuredWorkerId;
+        } else {
+            workerId = leaseWorkerId();
+        }
+        log.info("Snowflake ID generator started, workerId={}", workerId);
+    }
+
+    /**
+     * Next ID
+     * @return
+     */
+    public long nextId() {
+        if (leaseLost) {
+            throw new IllegalStateException("Snowflake worker lease lost, workerId=" + workerId);
+        }
+        if (configuredWorkerId < 0 && System.nanoTime() - leaseValidUntilNanos >= 0) {
+            //Not renewed in time, another node may take the ID once the key expires
+            throw new IllegalStateException("Snowflake worker lease expired, workerId=" + workerId);
+        }
+        while (true) {
+            long current = state.get();
+            long lastTimestamp = current >>> SEQUENCE_BITS;
+            long now = System.currentTimeMillis() - EPOCH;
+
+            long next;
+            if (now > lastTimestamp) {
+                next = now << SEQUENCE_BITS;
+            } else if (lastTimestamp - now > MAX_DRIFT_MILLIS) {
+                throw new IllegalStateException("Clock moved backwards by " + (lastTimestamp - now) + "ms");
+            } else if ((current & SEQUENCE_MASK) < SEQUENCE_MASK) {
+                //Same millisecond, or the clock is behind: keep counting on the last timestamp
+                next = current + 1;
+            } else if (lastTimestamp + 1 - now > MAX_DRIFT_MILLIS) {
+                //Too far ahead of the clock, wait for it
+                Thread.yield();
+                continue;
+            } else {
+                //Sequence exhausted, borrow the next millisecond
+                next = (lastTimestamp + 1) << SEQUENCE_BITS;
+            }
+
+            if (state.compareAndSet(current, next)) {
+                return ((next >>> SEQUENCE_BITS) << (WORKER_BITS + SEQUENCE_BITS))
+                        | (workerId << SEQUENCE_BITS)
+                        | (next & SEQUENCE_MASK);
+            }
+        }
+    }
+
+    /**
+     * Take a free worker ID, starting from a random one
+     * @return
+     */
+    private long leaseWorkerId() {
+        int start = new Random().nextInt((int) MAX_WORKER + 1);
+        for (int i = 0; i <= MAX_WORKER; i++) {
+            long candidate = (start + i) & MAX_WORKER;
+            long requestedAt = System.nanoTime();
+            Boolean ok = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(WORKER_KEY + candidate, leaseToken, WORKER_LEASE_SECONDS, TimeUnit.SECONDS);
+            if (Boolean.TRUE.equals(ok)) {
+                leaseValidUntilNanos = leaseDeadline(requestedAt);
+                return candidate;
+            }
+        }
+        throw new IllegalStateException("No free snowflake worker ID");
+    }
+
+    /**
+     * Renew the worker lease
+     */
+    @Scheduled(fixedDelay = 10000)
+    public void renewLease() {
+        if (configuredWorkerId >= 0 || workerId < 0) {
+            return;
+        }
+        //The lease counts from before the request, Redis may have applied the TTL any time after
+        long requestedAt = System.nanoTime();
+        Long renewed;
+        try {
+            renewed = stringRedisTemplate.execute(RENEW_LEASE, Collections.singletonList(WORKER_KEY + workerId),
+                    leaseToken, String.valueOf(WORKER_LEASE_SECONDS));
+        } catch (Exception e) {
+            //nextId keeps working until the local deadline
+            log.warn("Snowflake worker lease renewal failed, workerId={}", workerId, e);
+            return;
+        }
+        if (renewed == null || renewed != 1) {
+            //Another node took the ID after the lease expired, stop generating to avoid duplicates
+            leaseLost = true;
+            log.error("Snowflake worker lease lost, workerId={}", workerId);
+            return;
+        }
+        leaseValidUntilNanos = leaseDeadline(requestedAt);
+    }
+
+    private long leaseDeadline(long requestedAt) {
+        return requestedAt + TimeUnit.SECONDS.toNanos(WORKER_LEASE_SECONDS - LEASE_SAFETY_MARGIN_SECONDS);
+    }
+
+    @PreDestroy
+    public void releaseLease() {
+        if (configuredWorkerId < 0 && workerId >= 0 && !leaseLost
+                && leaseToken.equals(stringRedisTemplate.opsForValue().get(WORKER_KEY + workerId))) {
+            stringRedisTemplate.delete(WORKER_KEY + workerId);
+        }
+    }
+}
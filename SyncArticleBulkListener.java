@@ -0,0 +1,76 @@
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index article sync messages into ES in bulk
+ * Repeated updates of the same article inside a batch become one document, offsets are committed after the bulk succeeded
+ */
+@Component
+@Slf4j
+public class SyncArticleBulkListener {
+
+    public final static String ARTICLE_INDEX = "app_info_article";
+
+    @Autowired
+    private ArticleSearchBulkIndexer articleSearchBulkIndexer;
+
+    @Autowired
+    private ArticleSearchResultCache articleSearchResultCache;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @KafkaListener(topics = ArticleConstants.ARTICLE_ES_SYNC_TOPIC,
+            containerFactory = SearchKafkaConfig.ES_SYNC_BATCH_FACTORY)
+    public void onMessages(List<ConsumerRecord<String, String>> records, Acknowledgment acknowledgment) throws Exception {
+        //1. Keep the last message of each article, records of one key are in offset order
+        Map<String, Map<String, Object>> documents = new LinkedHashMap<>();
+        for (ConsumerRecord<String, String> record : records) {
+            if (StringUtils.isBlank(record.value())) {
+                continue;
+            }
+            Map<String, Object> document = ArticleSearchDocumentUtils.toDocument(record.value());
+            String id = record.key() != null ? record.key() : String.valueOf(document.get("id"));
+            documents.remove(id);
+            documents.put(id, document);
+        }
+
+        if (!documents.isEmpty()) {
+            //2. Index into the live index, and into the index under construction if a reindex is running
+            List<String> indices = new ArrayList<>(2);
+            indices.add(ARTICLE_INDEX);
+            String target = stringRedisTemplate.opsForValue().get(ArticleReindexJob.REINDEX_TARGET_KEY);
+            if (StringUtils.isNotBlank(target) && !ARTICLE_INDEX.equals(target)) {
+                indices.add(target);
+            }
+            List<DocWriteRequest<?>> requests = new ArrayList<>(documents.size() * indices.size());
+            for (String index : indices) {
+                for (Map.Entry<String, Map<String, Object>> entry : documents.entrySet()) {
+                    requests.add(new IndexRequest(index).id(entry.getKey()).source(entry.getValue()));
+                }
+            }
+            articleSearchBulkIndexer.bulk(requests);
+
+            //3. Cached search results are invalidated with the next generation
+            articleSearchResultCache.markChanged();
+        }
+
+        //Commit offsets only after the documents are in ES
+        acknowledgment.acknowledge();
+        log.info("Article sync batch, received={}, indexed={}", records.size(), documents.size());
+    }
+}
@@ -71,6 +71,9 @@ public class TaskServiceImpl implements TaskService {
     @Autowired
     private TaskinfoLogsMapper taskinfoLogsMapper;
 
+    @Autowired
+    private SnowflakeIdGenerator snowflakeIdGenerator;
+
     /**
      * Add task to the database
      *
@@ -86,10 +89,10 @@ public class TaskServiceImpl implements TaskService {
             Taskinfo taskinfo = new Taskinfo();
             BeanUtils.copyProperties(task, taskinfo);
             taskinfo.setExecuteTime(new Date(task.getExecuteTime()));
-            taskinfoMapper.insert(taskinfo);
-
-            //Set taskID
+            //Set taskID before the insert, no read back from the database
+            taskinfo.setTaskId(snowflakeIdGenerator.nextId());
             task.setTaskId(taskinfo.getTaskId());
+            taskinfoMapper.insert(taskinfo);
 
             //Save task log data
             TaskinfoLogs taskinfoLogs = new TaskinfoLogs();
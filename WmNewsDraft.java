@@ -0,0 +1,45 @@
+
+import com.baomidou.mybatisplus.annotation.IdType;
+import com.baomidou.mybatisplus.annotation.TableField;
+import com.baomidou.mybatisplus.annotation.TableId;
+import com.baomidou.mybatisplus.annotation.TableName;
+import lombok.Data;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * Draft revision of a self-media article
+ * A snapshot holds the full content, a patch holds block-level changes against the previous version
+ */
+@Data
+@TableName("wm_news_draft")
+public class WmNewsDraft implements Serializable {
+
+    @TableId(value = "id", type = IdType.AUTO)
+    private Long id;
+
+    @TableField("news_id")
+    private Integer newsId;
+
+    /**
+     * Revision version, increases by one for every saved patch
+     */
+    private Integer version;
+
+    /**
+     * 0 Snapshot  1 Patch
+     */
+    private Short type;
+
+    /**
+     * Full content for a snapshot, patch operations for a patch
+     */
+    private String body;
+
+    @TableField("created_time")
+    private Date createdTime;
+
+    public static final short TYPE_SNAPSHOT = 0;
+    public static final short TYPE_PATCH = 1;
+}
@@ -0,0 +1,20 @@
+
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.Select;
+
+import java.util.List;
+
+@Mapper
+public interface WmNewsDraftMapper extends BaseMapper<WmNewsDraft> {
+
+    /**
+     * Articles whose patch chain is long enough to be compacted
+     * @param minPatches
+     * @param limit
+     * @return
+     */
+    @Select("select news_id from wm_news_draft where type = 1 group by news_id having count(*) >= #{minPatches} limit #{limit}")
+    List<Integer> selectNewsIdsToCompact(@Param("minPatches") int minPatches, @Param("limit") int limit);
+}
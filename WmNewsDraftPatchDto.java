@@ -0,0 +1,23 @@
+
+import lombok.Data;
+
+@Data
+public class WmNewsDraftPatchDto {
+
+    /**
+     * Self-media article ID
+     */
+    private Integer newsId;
+
+    /**
+     * Version the patch was made against, 0 means the content saved in wm_news
+     */
+    private Integer baseVersion;
+
+    /**
+     * Block operations, for example
+     * [{"op":"replace","index":3,"block":{"type":"text","value":"..."}},{"op":"remove","index":5}]
+     * op: replace insert remove
+     */
+    private String patch;
+}
@@ -0,0 +1,37 @@
+
+public interface WmNewsDraftService {
+
+    /**
+     * Save a block-level patch of the draft content
+     * @param dto
+     * @return
+     */
+    public ResponseResult savePatch(WmNewsDraftPatchDto dto);
+
+    /**
+     * Save the full draft content, only the blocks that differ from the current draft are stored
+     * @param wmNews
+     * @param content
+     */
+    public void saveDraft(WmNews wmNews, String content);
+
+    /**
+     * Current draft content, the saved article content when there is no draft
+     * @param wmNews
+     * @return
+     */
+    public String currentContent(WmNews wmNews);
+
+    /**
+     * Load the current draft content and its version
+     * @param newsId
+     * @return
+     */
+    public ResponseResult loadDraft(Integer newsId);
+
+    /**
+     * Delete all draft revisions, called after the article is submitted
+     * @param newsId
+     */
+    public void clearDraft(Integer newsId);
+}
@@ -0,0 +1,353 @@
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+import com.baomidou.mybatisplus.core.toolkit.Wrappers;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+@Service
+@Slf4j
+@Transactional
+public class WmNewsDraftServiceImpl implements WmNewsDraftService {
+
+    /**
+     * Compact the patch chain once it reaches this length
+     */
+    private final static int COMPACT_MIN_PATCHES = 20;
+
+    private final static int COMPACT_BATCH_SIZE = 100;
+
+    @Autowired
+    private WmNewsDraftMapper wmNewsDraftMapper;
+
+    @Autowired
+    private WmNewsMapper wmNewsMapper;
+
+    /**
+     * Save a block-level patch of the draft content
+     * @param dto
+     * @return
+     */
+    @Override
+    public ResponseResult savePatch(WmNewsDraftPatchDto dto) {
+        //1. Check parameters
+        if(dto == null || dto.getNewsId() == null || dto.getBaseVersion() == null || StringUtils.isBlank(dto.getPatch())){
+            return ResponseResult.errorResult(AppHttpCodeEnum.PARAM_INVALID);
+        }
+        WmNews wmNews = lockNews(dto.getNewsId());
+        if(wmNews == null || !wmNews.getUserId().equals(WmThreadLocalUtil.getUser().getId())){
+            return ResponseResult.errorResult(AppHttpCodeEnum.DATA_NOT_EXIST,"Article does not exist");
+        }
+
+        //2. The patch must be made against the latest version
+        List<WmNewsDraft> revisions = listRevisions(dto.getNewsId(), true);
+        int headVersion = revisions.isEmpty() ? 0 : revisions.get(revisions.size() - 1).getVersion();
+        if(dto.getBaseVersion() != headVersion){
+            return ResponseResult.errorResult(AppHttpCodeEnum.PARAM_INVALID,"Draft has been modified, please reload");
+        }
+
+        //3. Apply the patch to the current content, an invalid patch is rejected here
+        JSONArray blocks = materialize(wmNews, revisions);
+        applyPatch(blocks, JSON.parseArray(dto.getPatch()));
+
+        //4. Save the patch, the article lock keeps the version free until commit
+        WmNewsDraft draft = new WmNewsDraft();
+        draft.setNewsId(dto.getNewsId());
+        draft.setVersion(headVersion + 1);
+        draft.setType(WmNewsDraft.TYPE_PATCH);
+        draft.setBody(dto.getPatch());
+        draft.setCreatedTime(new Date());
+        wmNewsDraftMapper.insert(draft);
+
+        return ResponseResult.okResult(draft.getVersion());
+    }
+
+    /**
+     * Save the full draft content, only the blocks that differ from the current draft are stored
+     * @param wmNews
+     * @param content
+     */
+    @Override
+    public void saveDraft(WmNews wmNews, String content) {
+        JSONArray target = parseContent(content);
+
+        //1. Diff against the current draft, read under the article lock so a concurrent save is seen, not a snapshot
+        lockNews(wmNews.getId());
+        List<WmNewsDraft> revisions = listRevisions(wmNews.getId(), true);
+        int headVersion = revisions.isEmpty() ? 0 : revisions.get(revisions.size() - 1).getVersion();
+        JSONArray patch = diff(materialize(wmNews, revisions), target);
+        if(patch.isEmpty()){
+            return;
+        }
+
+        //2. A patch rewriting most blocks is saved as a snapshot, compaction removes the older revisions
+        WmNewsDraft draft = new WmNewsDraft();
+        draft.setNewsId(wmNews.getId());
+        draft.setVersion(headVersion + 1);
+        if(patch.size() > target.size() / 2){
+            draft.setType(WmNewsDraft.TYPE_SNAPSHOT);
+            draft.setBody(target.toJSONString());
+        }else {
+            draft.setType(WmNewsDraft.TYPE_PATCH);
+            draft.setBody(patch.toJSONString());
+        }
+        draft.setCreatedTime(new Date());
+        wmNewsDraftMapper.insert(draft);
+    }
+
+    /**
+     * Current draft content, the saved article content when there is no draft
+     * @param wmNews
+     * @return
+     */
+    @Override
+    public String currentContent(WmNews wmNews) {
+        return materialize(wmNews, listRevisions(wmNews.getId(), false)).toJSONString();
+    }
+
+    /**
+     * Load the current draft content and its version
+     * @param newsId
+     * @return
+     */
+    @Override
+    public ResponseResult loadDraft(Integer newsId) {
+        if(newsId == null){
+            return ResponseResult.errorResult(AppHttpCodeEnum.PARAM_INVALID);
+        }
+        WmNews wmNews = wmNewsMapper.selectById(newsId);
+        if(wmNews == null || !wmNews.getUserId().equals(WmThreadLocalUtil.getUser().getId())){
+            return ResponseResult.errorResult(AppHttpCodeEnum.DATA_NOT_EXIST,"Article does not exist");
+        }
+
+        List<WmNewsDraft> revisions = listRevisions(newsId, false);
+        Map<String,Object> map = new HashMap<>();
+        map.put("version", revisions.isEmpty() ? 0 : revisions.get(revisions.size() - 1).getVersion());
+        map.put("content", materialize(wmNews, revisions).toJSONString());
+        return ResponseResult.okResult(map);
+    }
+
+    /**
+     * Delete all draft revisions
+     * @param newsId
+     */
+    @Override
+    public void clearDraft(Integer newsId) {
+        wmNewsDraftMapper.delete(Wrappers.<WmNewsDraft>lambdaQuery().eq(WmNewsDraft::getNewsId, newsId));
+    }
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    /**
+     * One transaction per compacted article, a failed article is rolled back alone
+     */
+    private TransactionTemplate compactTransactionTemplate;
+
+    @PostConstruct
+    public void initCompactTransactionTemplate() {
+        compactTransactionTemplate = new TransactionTemplate(transactionManager);
+        compactTransactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    }
+
+    /**
+     * Periodically fold long patch chains into a snapshot
+     * The snapshot keeps the head version, so clients editing against it are not affected
+     */
+    @Scheduled(fixedDelay = 60000)
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void compact() {
+        List<Integer> newsIds = wmNewsDraftMapper.selectNewsIdsToCompact(COMPACT_MIN_PATCHES, COMPACT_BATCH_SIZE);
+        for (Integer newsId : newsIds) {
+            try {
+                compactTransactionTemplate.execute(status -> {
+                    compact(newsId);
+                    return null;
+                });
+            } catch (Exception e) {
+                log.error("Draft compaction failed, newsId={}", newsId, e);
+            }
+        }
+        if(!newsIds.isEmpty()){
+            log.info("Compacted drafts of {} articles", newsIds.size());
+        }
+    }
+
+    /**
+     * Replace the revisions of one article with a snapshot at the head version
+     * @param newsId
+     */
+    private void compact(Integer newsId) {
+        WmNews wmNews = lockNews(newsId);
+        if(wmNews == null){
+            clearDraft(newsId);
+            return;
+        }
+        List<WmNewsDraft> revisions = listRevisions(newsId, true);
+        if(revisions.isEmpty()){
+            return;
+        }
+        int headVersion = revisions.get(revisions.size() - 1).getVersion();
+        JSONArray blocks = materialize(wmNews, revisions);
+
+        wmNewsDraftMapper.delete(Wrappers.<WmNewsDraft>lambdaQuery()
+                .eq(WmNewsDraft::getNewsId, newsId).le(WmNewsDraft::getVersion, headVersion));
+        WmNewsDraft snapshot = new WmNewsDraft();
+        snapshot.setNewsId(newsId);
+        snapshot.setVersion(headVersion);
+        snapshot.setType(WmNewsDraft.TYPE_SNAPSHOT);
+        snapshot.setBody(blocks.toJSONString());
+        snapshot.setCreatedTime(new Date());
+        wmNewsDraftMapper.insert(snapshot);
+    }
+
+    /**
+     * Lock the article row, draft writes of one article run one at a time
+     * @param newsId
+     * @return
+     */
+    private WmNews lockNews(Integer newsId) {
+        return wmNewsMapper.selectOne(Wrappers.<WmNews>lambdaQuery().eq(WmNews::getId, newsId).last("for update"));
+    }
+
+    /**
+     * Revisions from the latest snapshot on, in version order
+     * @param newsId
+     * @param locked read the latest committed rows with for update, a plain read may reuse the transaction's snapshot
+     * @return
+     */
+    private List<WmNewsDraft> listRevisions(Integer newsId, boolean locked) {
+        WmNewsDraft snapshot = wmNewsDraftMapper.selectOne(Wrappers.<WmNewsDraft>lambdaQuery()
+                .eq(WmNewsDraft::getNewsId, newsId).eq(WmNewsDraft::getType, WmNewsDraft.TYPE_SNAPSHOT)
+                .orderByDesc(WmNewsDraft::getVersion).last(locked ? "limit 1 for update" : "limit 1"));
+        return wmNewsDraftMapper.selectList(Wrappers.<WmNewsDraft>lambdaQuery()
+                .eq(WmNewsDraft::getNewsId, newsId)
+                .ge(snapshot != null, WmNewsDraft::getVersion, snapshot == null ? 0 : snapshot.getVersion())
+                .orderByAsc(WmNewsDraft::getVersion)
+                .last(locked, "for update"));
+    }
+
+    /**
+     * Rebuild the content: latest snapshot (or the saved article content) plus the following patches
+     * @param wmNews
+     * @param revisions
+     * @return
+     */
+    private JSONArray materialize(WmNews wmNews, List<WmNewsDraft> revisions) {
+        JSONArray blocks = null;
+        for (WmNewsDraft revision : revisions) {
+            if(revision.getType() == WmNewsDraft.TYPE_SNAPSHOT){
+                blocks = JSON.parseArray(revision.getBody());
+            }else {
+                if(blocks == null){
+                    blocks = parseContent(wmNews.getContent());
+                }
+                applyPatch(blocks, JSON.parseArray(revision.getBody()));
+            }
+        }
+        return blocks == null ? parseContent(wmNews.getContent()) : blocks;
+    }
+
+    /**
+     * Block operations turning source into target: the blocks between the common prefix and suffix are replaced,
+     * then the surplus is inserted or removed
+     * @param source
+     * @param target
+     * @return
+     */
+    private JSONArray diff(JSONArray source, JSONArray target) {
+        int prefix = 0;
+        while (prefix < source.size() && prefix < target.size() && source.get(prefix).equals(target.get(prefix))) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < source.size() - prefix && suffix < target.size() - prefix
+                && source.get(source.size() - 1 - suffix).equals(target.get(target.size() - 1 - suffix))) {
+            suffix++;
+        }
+        int sourceEnd = source.size() - suffix;
+        int targetEnd = target.size() - suffix;
+
+        JSONArray operations = new JSONArray();
+        int index = prefix;
+        while (index < sourceEnd && index < targetEnd) {
+            operations.add(operation("replace", index, target.getJSONObject(index)));
+            index++;
+        }
+        for (int i = index; i < targetEnd; i++) {
+            operations.add(operation("insert", i, target.getJSONObject(i)));
+        }
+        for (int i = index; i < sourceEnd; i++) {
+            //Every removal shifts the next block to the same index
+            operations.add(operation("remove", index, null));
+        }
+        return operations;
+    }
+
+    private JSONObject operation(String op, int index, JSONObject block) {
+        JSONObject operation = new JSONObject();
+        operation.put("op", op);
+        operation.put("index", index);
+        if(block != null){
+            operation.put("block", block);
+        }
+        return operation;
+    }
+
+    private JSONArray parseContent(String content) {
+        return StringUtils.isBlank(content) ? new JSONArray() : JSON.parseArray(content);
+    }
+
+    /**
+     * Apply block operations in order
+     * @param blocks
+     * @param operations
+     */
+    private void applyPatch(JSONArray blocks, JSONArray operations) {
+        for (int i = 0; i < operations.size(); i++) {
+            JSONObject operation = operations.getJSONObject(i);
+            String op = operation.getString("op");
+            Integer index = operation.getInteger("index");
+            if(op == null || index == null || index < 0){
+                throw new CustomException(AppHttpCodeEnum.PARAM_INVALID);
+            }
+            switch (op) {
+                case "replace":
+                    checkIndex(index, blocks.size() - 1);
+                    blocks.set(index, operation.getJSONObject("block"));
+                    break;
+                case "insert":
+                    checkIndex(index, blocks.size());
+                    blocks.add(index, operation.getJSONObject("block"));
+                    break;
+                case "remove":
+                    checkIndex(index, blocks.size() - 1);
+                    blocks.remove((int) index);
+                    break;
+                default:
+                    throw new CustomException(AppHttpCodeEnum.PARAM_INVALID);
+            }
+        }
+    }
+
+    private void checkIndex(int index, int max) {
+        if(index > max){
+            throw new CustomException(AppHttpCodeEnum.PARAM_INVALID);
+        }
+    }
+}
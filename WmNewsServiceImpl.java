@@ -10,7 +10,6 @@ import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.kafka.core.KafkaTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -29,6 +28,7 @@ public class WmNewsServiceImpl extends ServiceImpl<WmNewsMapper, WmNews> impleme
      * @return
      */
     @Override
+    @Transactional(readOnly = true)
     public ResponseResult findList(WmNewsPageReqDto dto) {
         //1. Check parameters
         //Pagination check
@@ -80,6 +80,32 @@ public class WmNewsServiceImpl extends ServiceImpl<WmNewsMapper, WmNews> impleme
     @Autowired
     private WmNewsTaskService wmNewsTaskService;
 
+    @Autowired
+    private WmNewsDraftService wmNewsDraftService;
+
+    /**
+     * Query one article for editing, the content is the current draft
+     * @param id
+     * @return
+     */
+    @Override
+    @Transactional(readOnly = true)
+    public ResponseResult findOne(Integer id) {
+        //1. Check parameters
+        if(id == null){
+            return ResponseResult.errorResult(AppHttpCodeEnum.PARAM_INVALID);
+        }
+
+        //2. Query article of the current logged-in user
+        WmNews wmNews = getById(id);
+        if(wmNews == null || !wmNews.getUserId().equals(WmThreadLocalUtil.getUser().getId())){
+            return ResponseResult.errorResult(AppHttpCodeEnum.DATA_NOT_EXIST,"Article does not exist");
+        }
+
+        //3. Autosaved revisions are not in wm_news until the article is submitted
+        wmNews.setContent(wmNewsDraftService.currentContent(wmNews));
+        return ResponseResult.okResult(wmNews);
+    }
 
     /**
      * Publish, modify article, or save as draft
@@ -110,13 +136,27 @@ public class WmNewsServiceImpl extends ServiceImpl<WmNewsMapper, WmNews> impleme
             wmNews.setType(null);
         }
 
-        saveOrUpdateWmNews(wmNews);
-
         //2. Determine if it is a draft; if it is a draft, end the current method
+        //The content of an existing draft goes to the draft revision store, the wm_news content is written on submit
         if(dto.getStatus().equals(WmNews.Status.NORMAL.getCode())){
+            if(wmNews.getId() != null){
+                //The draft is diffed against the stored article, not the one built from the request
+                WmNews dbNews = getById(wmNews.getId());
+                if(dbNews == null || !dbNews.getUserId().equals(WmThreadLocalUtil.getUser().getId())){
+                    return ResponseResult.errorResult(AppHttpCodeEnum.DATA_NOT_EXIST,"Article does not exist");
+                }
+                wmNewsDraftService.saveDraft(dbNews, dto.getContent());
+                wmNews.setContent(null);
+            }
+            saveOrUpdateWmNews(wmNews);
             return ResponseResult.okResult(AppHttpCodeEnum.SUCCESS);
         }
 
+        saveOrUpdateWmNews(wmNews);
+        if(dto.getId() != null){
+            wmNewsDraftService.clearDraft(dto.getId());
+        }
+
         //3. If not a draft, save the relationship between article content, images, and materials
         //Retrieve image information from the article content
         List<String> materials =  ectractUrlInfo(dto.getContent());
@@ -266,7 +306,7 @@ public class WmNewsServiceImpl extends ServiceImpl<WmNewsMapper, WmNews> impleme
     }
 
     @Autowired
-    private KafkaTemplate<String,String> kafkaTemplate;
+    private KafkaOutboxService kafkaOutboxService;
 
     /**
      * Shelving and unshelving of articles
@@ -297,11 +337,12 @@ public class WmNewsServiceImpl extends ServiceImpl<WmNewsMapper, WmNews> impleme
                     .eq(WmNews::getId,wmNews.getId()));
 
             if(wmNews.getArticleId() != null){
-                //Send message to notify about the article configuration changes
+                //Save message to the outbox, it is sent only after the transaction commits
                 Map<String,Object> map = new HashMap<>();
                 map.put("articleId",wmNews.getArticleId());
                 map.put("enable",dto.getEnable());
-                kafkaTemplate.send(WmNewsMessageConstants.WM_NEWS_UP_OR_DOWN_TOPIC, JSON.toJSONString(map));
+                kafkaOutboxService.enqueue(WmNewsMessageConstants.WM_NEWS_UP_OR_DOWN_TOPIC,
+                        String.valueOf(wmNews.getArticleId()), JSON.toJSONString(map));
             }
 
         }